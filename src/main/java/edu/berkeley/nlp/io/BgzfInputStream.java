@@ -0,0 +1,88 @@
+package edu.berkeley.nlp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads BGZF files: gzip files made of many small gzip members, each of
+ * which records its own compressed size in a "BC" extra field. Any gzip
+ * reader can read them as ordinary multi-member gzip, but knowing the block
+ * boundaries up front lets the blocks be inflated in parallel.
+ *
+ * @see BgzfOutputStream
+ */
+public class BgzfInputStream extends BlockCompressedInputStream
+{
+	public static final int HEADER_LENGTH = 18;
+
+	private static final int FOOTER_LENGTH = 8;
+
+	public BgzfInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Returns whether the first HEADER_LENGTH bytes of a file are the header
+	 * of a BGZF block.
+	 */
+	public static boolean isBgzfHeader(byte[] header) {
+		return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 // gzip, deflate
+			&& (header[3] & 4) != 0 // FEXTRA
+			&& unsignedShort(header, 10) == 6 && header[12] == 'B' && header[13] == 'C' && unsignedShort(header, 14) == 2;
+	}
+
+	protected byte[] readBlock() throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int n = readFully(in, header, 0, HEADER_LENGTH);
+		if (n == 0) return null;
+		if (n < HEADER_LENGTH || !isBgzfHeader(header)) throw new IOException("Not a BGZF block");
+		int blockSize = unsignedShort(header, 16) + 1;
+		if (blockSize < HEADER_LENGTH + FOOTER_LENGTH) throw new IOException("Bad BGZF block size " + blockSize);
+		byte[] compressed = new byte[blockSize];
+		System.arraycopy(header, 0, compressed, 0, HEADER_LENGTH);
+		if (readFully(in, compressed, HEADER_LENGTH, blockSize - HEADER_LENGTH) < blockSize - HEADER_LENGTH) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		return compressed;
+	}
+
+	protected byte[] decompress(byte[] compressed) throws IOException {
+		int footer = compressed.length - FOOTER_LENGTH;
+		int expectedCrc = int32(compressed, footer);
+		int uncompressedSize = int32(compressed, footer + 4);
+		byte[] data = new byte[uncompressedSize];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed, HEADER_LENGTH, footer - HEADER_LENGTH);
+			int n = 0;
+			while (n < uncompressedSize && !inflater.finished()) {
+				int inflated = inflater.inflate(data, n, uncompressedSize - n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += inflated;
+			}
+			if (n != uncompressedSize) throw new IOException("BGZF block inflated to " + n + " bytes, expected " + uncompressedSize);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, uncompressedSize);
+		if ((int) crc.getValue() != expectedCrc) throw new IOException("BGZF block CRC mismatch");
+		return data;
+	}
+
+	// Little-endian, as in gzip
+	static int unsignedShort(byte[] b, int i) {
+		return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8);
+	}
+
+	static int int32(byte[] b, int i) {
+		return unsignedShort(b, i) | (unsignedShort(b, i + 2) << 16);
+	}
+
+}
@@ -0,0 +1,123 @@
+package edu.berkeley.nlp.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF files, gzip files made of independently compressed blocks of
+ * at most MAX_BLOCK_DATA bytes each, so that BgzfInputStream can inflate
+ * them in parallel. The output is valid gzip for any other reader as well.
+ * Ends with the standard empty BGZF block as an end-of-file marker.
+ */
+public class BgzfOutputStream extends OutputStream
+{
+	/** As in other BGZF writers, so a compressed block always fits in 64K. */
+	public static final int MAX_BLOCK_DATA = 0xff00;
+
+	private static final int MAX_BLOCK_SIZE = 0x10000;
+
+	private final OutputStream out;
+
+	private final Deflater deflater;
+
+	private final Deflater storer = new Deflater(Deflater.NO_COMPRESSION, true);
+
+	private final CRC32 crc = new CRC32();
+
+	private final byte[] data = new byte[MAX_BLOCK_DATA];
+
+	private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+
+	private int dataLength = 0;
+
+	private boolean closed = false;
+
+	public BgzfOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public BgzfOutputStream(OutputStream out, int level) {
+		this.out = out;
+		this.deflater = new Deflater(level, true);
+	}
+
+	public void write(int b) throws IOException {
+		if (dataLength == MAX_BLOCK_DATA) writeBlock();
+		data[dataLength++] = (byte) b;
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (dataLength == MAX_BLOCK_DATA) writeBlock();
+			int n = Math.min(length, MAX_BLOCK_DATA - dataLength);
+			System.arraycopy(buffer, offset, data, dataLength, n);
+			dataLength += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Writes out the block if it is full. A partial block is kept until it
+	 * fills up or the stream is closed, so that frequent flushes (e.g. by an
+	 * auto-flushing PrintWriter) do not make one tiny block each.
+	 */
+	public void flush() throws IOException {
+		if (dataLength == MAX_BLOCK_DATA) writeBlock();
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		if (dataLength > 0) writeBlock();
+		writeBlock(); // empty end-of-file marker
+		deflater.end();
+		storer.end();
+		out.close();
+	}
+
+	private void writeBlock() throws IOException {
+		int compressedLength = deflate(deflater);
+		// Incompressible data: store it instead, which always fits
+		if (compressedLength < 0) compressedLength = deflate(storer);
+
+		crc.reset();
+		crc.update(data, 0, dataLength);
+		int blockSize = BgzfInputStream.HEADER_LENGTH + compressedLength + 8;
+		byte[] header = new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+			(byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8) };
+		out.write(header);
+		out.write(compressed, 0, compressedLength);
+		writeInt32((int) crc.getValue());
+		writeInt32(dataLength);
+		dataLength = 0;
+	}
+
+	/**
+	 * Deflates the block data into compressed.
+	 *
+	 * @return The compressed length, or -1 if it does not fit in a block
+	 */
+	private int deflate(Deflater d) {
+		int room = MAX_BLOCK_SIZE - BgzfInputStream.HEADER_LENGTH - 8;
+		d.reset();
+		d.setInput(data, 0, dataLength);
+		d.finish();
+		int n = 0;
+		while (!d.finished() && n < room) {
+			n += d.deflate(compressed, n, room - n);
+		}
+		return d.finished() ? n : -1;
+	}
+
+	private void writeInt32(int v) throws IOException {
+		out.write(v);
+		out.write(v >> 8);
+		out.write(v >> 16);
+		out.write(v >> 24);
+	}
+
+}
@@ -0,0 +1,164 @@
+package edu.berkeley.nlp.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An input stream over data made of independently compressed blocks, which
+ * decompresses the blocks ahead of the reader on a small shared thread pool.
+ * The compressed blocks are read from the underlying stream on the caller's
+ * thread and handed to the pool, so reading is no longer limited to the
+ * decompression speed of one core.
+ *
+ * Subclasses split the underlying stream into blocks and decompress them.
+ */
+public abstract class BlockCompressedInputStream extends InputStream
+{
+	private static final byte[] EMPTY = new byte[0];
+
+	private static int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static ExecutorService pool;
+
+	protected final InputStream in;
+
+	// Blocks being decompressed, in stream order
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private final int readAhead;
+
+	private boolean endOfBlocks = false;
+
+	private byte[] block = EMPTY;
+
+	private int position = 0;
+
+	protected BlockCompressedInputStream(InputStream in) {
+		this.in = in;
+		this.readAhead = 2 * numThreads;
+	}
+
+	/**
+	 * Sets the number of decompression threads shared by all streams. Only
+	 * takes effect before the first stream is read.
+	 */
+	public static synchronized void setNumThreads(int numThreads) {
+		BlockCompressedInputStream.numThreads = Math.max(1, numThreads);
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "block-decompressor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Reads the next compressed block from the underlying stream.
+	 *
+	 * @return The block, or null at end of stream
+	 */
+	protected abstract byte[] readBlock() throws IOException;
+
+	/**
+	 * Decompresses a block returned by readBlock(). Runs on a pool thread, so
+	 * it must not touch the underlying stream.
+	 */
+	protected abstract byte[] decompress(byte[] compressed) throws IOException;
+
+	private void submitBlocks() throws IOException {
+		while (!endOfBlocks && pending.size() < readAhead) {
+			final byte[] compressed = readBlock();
+			if (compressed == null) {
+				endOfBlocks = true;
+				break;
+			}
+			pending.add(getPool().submit(new Callable<byte[]>()
+			{
+				public byte[] call() throws IOException {
+					return decompress(compressed);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Moves on to the next non-empty block if the current one is used up.
+	 *
+	 * @return false at end of stream
+	 */
+	private boolean ensureBlock() throws IOException {
+		while (position == block.length) {
+			submitBlocks();
+			if (pending.isEmpty()) return false;
+			try {
+				block = pending.removeFirst().get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				throw new IOException(cause);
+			}
+			position = 0;
+		}
+		return true;
+	}
+
+	public int read() throws IOException {
+		if (!ensureBlock()) return -1;
+		return block[position++] & 0xff;
+	}
+
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!ensureBlock()) return -1;
+		int n = Math.min(length, block.length - position);
+		System.arraycopy(block, position, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	public int available() {
+		return block.length - position;
+	}
+
+	public void close() throws IOException {
+		for (Future<byte[]> future : pending) {
+			future.cancel(false);
+		}
+		pending.clear();
+		in.close();
+	}
+
+	/**
+	 * Reads up to length bytes, stopping early only at end of stream.
+	 *
+	 * @return The number of bytes read
+	 */
+	protected static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int n = in.read(buffer, offset + total, length - total);
+			if (n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.io;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
@@ -15,7 +16,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 
 /**
@@ -103,13 +103,81 @@ public class IOUtils
 	}
 
 	public static BufferedReader openIn(File path) throws IOException {
+		return getReader(openInStream(path));
+	}
+
+	/**
+	 * Returns whether a file is compressed, judging by its name. Compressed
+	 * files can only be read from the start.
+	 */
+	public static boolean isCompressed(String fileName) {
+		return fileName.endsWith(".gz") || fileName.endsWith(".lzf");
+	}
+
+	/**
+	 * Opens a file as a stream of its decompressed bytes. BGZF (block gzip)
+	 * and LZF files are decompressed in parallel, other gzip files with a
+	 * single inflater.
+	 */
+	public static InputStream openInStream(File path) throws IOException {
 		InputStream is = new FileInputStream(path);
-		if (path.getName().endsWith(".gz")) is = new GZIPInputStream(is);
-		return new BufferedReader(getReader(is));
+		String name = path.getName();
+		if (name.endsWith(".lzf")) return new LzfBlockInputStream(new BufferedInputStream(is, 1 << 16));
+		if (name.endsWith(".gz")) {
+			BufferedInputStream bis = new BufferedInputStream(is, 1 << 16);
+			byte[] header = new byte[BgzfInputStream.HEADER_LENGTH];
+			bis.mark(header.length);
+			int n = BlockCompressedInputStream.readFully(bis, header, 0, header.length);
+			bis.reset();
+			if (n == header.length && BgzfInputStream.isBgzfHeader(header)) return new BgzfInputStream(bis);
+			return new GZIPInputStream(bis, 1 << 16);
+		}
+		return is;
+	}
+
+	/**
+	 * Opens an uncompressed file for reading, starting at the given byte
+	 * offset.
+	 */
+	public static BufferedReader openIn(File path, long byteOffset) throws IOException {
+		if (isCompressed(path.getName())) throw new IOException("Cannot seek in compressed file " + path);
+		FileInputStream is = new FileInputStream(path);
+		is.getChannel().position(byteOffset);
+		return getReader(is);
+	}
+
+	/**
+	 * Skips up to numLines lines without creating Strings for them. Lines end
+	 * as for BufferedReader.readLine().
+	 * 
+	 * @return The number of lines skipped, less than numLines at end of file
+	 */
+	public static int skipLines(BufferedReader reader, int numLines) throws IOException {
+		int skipped = 0;
+		boolean lineOpen = false;
+		while (skipped < numLines) {
+			int c = reader.read();
+			if (c == -1) {
+				if (lineOpen) skipped++;
+				break;
+			}
+			lineOpen = true;
+			if (c == '\n') {
+				skipped++;
+				lineOpen = false;
+			} else if (c == '\r') {
+				skipped++;
+				lineOpen = false;
+				// Swallow the \n of \r\n
+				reader.mark(1);
+				if (reader.read() != '\n') reader.reset();
+			}
+		}
+		return skipped;
 	}
 
 	public static BufferedReader getReader(InputStream in) throws IOException {
-		return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		return new BufferedReader(new InputStreamReader(in, "UTF-8"), 1 << 16);
 	}
 
 	public static BufferedReader openInHard(String path) {
@@ -129,10 +197,24 @@ public class IOUtils
 		return openOut(new File(path));
 	}
 
+	/**
+	 * Opens a file for writing. Files ending in .gz are written as BGZF and
+	 * files ending in .lzf as LZF, so that openIn() can decompress them in
+	 * parallel. Plain files flush after every line; compressed ones only when
+	 * they are closed, since each flush would otherwise end a block.
+	 */
 	public static PrintWriter openOut(File path) throws IOException {
 		OutputStream os = new FileOutputStream(path);
-		if (path.getName().endsWith(".gz")) os = new GZIPOutputStream(os);
-		return new PrintWriter(new OutputStreamWriter(os, "UTF-8"), true);
+		boolean blocks = false;
+		if (path.getName().endsWith(".gz")) {
+			os = new BgzfOutputStream(os);
+			blocks = true;
+		}
+		if (path.getName().endsWith(".lzf")) {
+			os = new LzfBlockOutputStream(os);
+			blocks = true;
+		}
+		return new PrintWriter(new OutputStreamWriter(os, "UTF-8"), !blocks);
 	}
 
 	public static PrintWriter openOutEasy(String path) {
@@ -0,0 +1,193 @@
+package edu.berkeley.nlp.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import edu.berkeley.nlp.mt.decoder.Logger;
+
+/**
+ * The number of lines of a text file, and the byte offsets of every
+ * STRIDE-th line, so that readers can start at any line by seeking to the
+ * closest indexed line and skipping the few lines after it.
+ *
+ * Indices are persisted in a sidecar file (the file name plus ".lidx") and
+ * are only used while the length and modification time of the file match
+ * the ones recorded in the index. Compressed files cannot be seeked, so
+ * their index only records the number of lines.
+ *
+ * Lines end with '\n' (optionally preceded by '\r').
+ */
+public class LineIndex
+{
+	public static final String SUFFIX = ".lidx";
+
+	public static final int STRIDE = 256;
+
+	private static final int MAGIC = 0x4c494458; // "LIDX"
+
+	private final long fileLength;
+
+	private final long lastModified;
+
+	private final int numLines;
+
+	// offsets[k] is the byte offset of line k * STRIDE, or null if unseekable
+	private final long[] offsets;
+
+	private LineIndex(long fileLength, long lastModified, int numLines, long[] offsets) {
+		this.fileLength = fileLength;
+		this.lastModified = lastModified;
+		this.numLines = numLines;
+		this.offsets = offsets;
+	}
+
+	public int getNumLines() {
+		return numLines;
+	}
+
+	public boolean isSeekable() {
+		return offsets != null;
+	}
+
+	/**
+	 * @return The line that seeking for the given line actually lands on,
+	 *         i.e. the closest indexed line before it
+	 */
+	public int indexedLineBefore(int line) {
+		return Math.min(line / STRIDE, offsets.length - 1) * STRIDE;
+	}
+
+	/**
+	 * @return The byte offset of indexedLineBefore(line)
+	 */
+	public long offsetOfIndexedLineBefore(int line) {
+		return offsets[indexedLineBefore(line) / STRIDE];
+	}
+
+	public boolean isValidFor(File file) {
+		return file.length() == fileLength && file.lastModified() == lastModified;
+	}
+
+	/**
+	 * Returns the index of the file, reading it from its sidecar file if that
+	 * is up to date, and otherwise building it with one raw pass over the
+	 * file (no decoding or tokenizing) and saving it for next time.
+	 */
+	public static LineIndex forFile(File file) {
+		File indexFile = new File(file.getPath() + SUFFIX);
+		if (indexFile.exists()) {
+			try {
+				LineIndex index = read(indexFile);
+				if (index.isValidFor(file)) return index;
+			} catch (IOException e) {
+				Logger.warn("Could not read line index %s: %s", indexFile, e);
+			}
+		}
+
+		LineIndex index;
+		try {
+			index = build(file);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			index.write(indexFile);
+		} catch (IOException e) {
+			// Read-only corpus directories are fine, the index is just not kept
+			Logger.warn("Could not save line index %s: %s", indexFile, e);
+		}
+		return index;
+	}
+
+	public static LineIndex build(File file) throws IOException {
+		long fileLength = file.length();
+		long lastModified = file.lastModified();
+		boolean seekable = !IOUtils.isCompressed(file.getName());
+
+		InputStream in = IOUtils.openInStream(file);
+		long[] offsets = new long[16];
+		int numOffsets = 1; // line 0 is at offset 0
+		int numLines = 0;
+		long position = 0;
+		boolean lineOpen = false;
+		byte[] buffer = new byte[1 << 16];
+		try {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					lineOpen = true;
+					if (buffer[i] != '\n') continue;
+					lineOpen = false;
+					numLines++;
+					if (seekable && numLines % STRIDE == 0) {
+						if (numOffsets == offsets.length) {
+							long[] newOffsets = new long[offsets.length * 2];
+							System.arraycopy(offsets, 0, newOffsets, 0, numOffsets);
+							offsets = newOffsets;
+						}
+						offsets[numOffsets++] = position + i + 1;
+					}
+				}
+				position += read;
+			}
+		} finally {
+			in.close();
+		}
+		// A last line without a newline is still a line
+		if (lineOpen) numLines++;
+
+		long[] finalOffsets = null;
+		if (seekable) {
+			finalOffsets = new long[numOffsets];
+			System.arraycopy(offsets, 0, finalOffsets, 0, numOffsets);
+		}
+		return new LineIndex(fileLength, lastModified, numLines, finalOffsets);
+	}
+
+	public void write(File indexFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(fileLength);
+			out.writeLong(lastModified);
+			out.writeInt(numLines);
+			out.writeInt(offsets == null ? -1 : offsets.length);
+			if (offsets != null) {
+				for (int i = 0; i < offsets.length; i++) {
+					out.writeLong(offsets[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static LineIndex read(File indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException("Not a line index");
+			long fileLength = in.readLong();
+			long lastModified = in.readLong();
+			int numLines = in.readInt();
+			int numOffsets = in.readInt();
+			long[] offsets = null;
+			if (numOffsets >= 0) {
+				offsets = new long[numOffsets];
+				for (int i = 0; i < numOffsets; i++) {
+					offsets[i] = in.readLong();
+				}
+			}
+			return new LineIndex(fileLength, lastModified, numLines, offsets);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package edu.berkeley.nlp.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.ning.compress.lzf.LZFDecoder;
+
+/**
+ * Reads LZF files (the chunked format of compress-lzf) with parallel
+ * decompression. Consecutive chunks are grouped into blocks of about
+ * GROUP_SIZE compressed bytes, which are decoded on the pool.
+ */
+public class LzfBlockInputStream extends BlockCompressedInputStream
+{
+	private static final int GROUP_SIZE = 1 << 20;
+
+	// 'Z', 'V', type, and the chunk length
+	private static final int CHUNK_HEADER_LENGTH = 5;
+
+	private static final int TYPE_NON_COMPRESSED = 0;
+
+	private static final int TYPE_COMPRESSED = 1;
+
+	private final byte[] chunkHeader = new byte[CHUNK_HEADER_LENGTH + 2];
+
+	public LzfBlockInputStream(InputStream in) {
+		super(in);
+	}
+
+	protected byte[] readBlock() throws IOException {
+		byte[] group = new byte[GROUP_SIZE + (1 << 16) + chunkHeader.length];
+		int groupLength = 0;
+		while (groupLength < GROUP_SIZE) {
+			int n = readFully(in, chunkHeader, 0, CHUNK_HEADER_LENGTH);
+			if (n == 0) break;
+			if (n < CHUNK_HEADER_LENGTH) throw new EOFException("Truncated LZF chunk header");
+			if (chunkHeader[0] != 'Z' || chunkHeader[1] != 'V') throw new IOException("Not an LZF chunk");
+			int headerLength = CHUNK_HEADER_LENGTH;
+			if (chunkHeader[2] == TYPE_COMPRESSED) {
+				// Followed by the uncompressed length
+				if (readFully(in, chunkHeader, CHUNK_HEADER_LENGTH, 2) < 2) throw new EOFException("Truncated LZF chunk header");
+				headerLength += 2;
+			} else if (chunkHeader[2] != TYPE_NON_COMPRESSED) {
+				throw new IOException("Unknown LZF chunk type " + chunkHeader[2]);
+			}
+			int chunkLength = ((chunkHeader[3] & 0xff) << 8) | (chunkHeader[4] & 0xff);
+			System.arraycopy(chunkHeader, 0, group, groupLength, headerLength);
+			groupLength += headerLength;
+			if (readFully(in, group, groupLength, chunkLength) < chunkLength) throw new EOFException("Truncated LZF chunk");
+			groupLength += chunkLength;
+		}
+		if (groupLength == 0) return null;
+		byte[] compressed = new byte[groupLength];
+		System.arraycopy(group, 0, compressed, 0, groupLength);
+		return compressed;
+	}
+
+	protected byte[] decompress(byte[] compressed) throws IOException {
+		return LZFDecoder.decode(compressed);
+	}
+
+}
@@ -0,0 +1,67 @@
+package edu.berkeley.nlp.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.ning.compress.lzf.LZFEncoder;
+
+/**
+ * Writes LZF files in the chunked format of compress-lzf, one chunk per
+ * CHUNK_SIZE bytes of data, for LzfBlockInputStream (or any LZF reader).
+ */
+public class LzfBlockOutputStream extends OutputStream
+{
+	/** The largest chunk the format allows. */
+	public static final int CHUNK_SIZE = 0xffff;
+
+	private final OutputStream out;
+
+	private final byte[] data = new byte[CHUNK_SIZE];
+
+	private int dataLength = 0;
+
+	private boolean closed = false;
+
+	public LzfBlockOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	public void write(int b) throws IOException {
+		if (dataLength == CHUNK_SIZE) writeChunk();
+		data[dataLength++] = (byte) b;
+	}
+
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (dataLength == CHUNK_SIZE) writeChunk();
+			int n = Math.min(length, CHUNK_SIZE - dataLength);
+			System.arraycopy(buffer, offset, data, dataLength, n);
+			dataLength += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Writes out the chunk if it is full. A partial chunk is kept until it
+	 * fills up or the stream is closed, so that frequent flushes do not make
+	 * one tiny chunk each.
+	 */
+	public void flush() throws IOException {
+		if (dataLength == CHUNK_SIZE) writeChunk();
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		if (dataLength > 0) writeChunk();
+		out.close();
+	}
+
+	private void writeChunk() throws IOException {
+		out.write(LZFEncoder.encode(data, dataLength));
+		dataLength = 0;
+	}
+
+}
@@ -31,6 +31,8 @@ public class Alignment
 
 	Set<Pair<Integer, Integer>> possibleAlignments;
 
+	Map<Pair<Integer, Integer>, Double> strengths;
+
 	public boolean containsSureAlignment(int englishPosition, int frenchPosition) {
 		return sureAlignments.contains(new Pair<Integer, Integer>(englishPosition, frenchPosition));
 	}
@@ -46,9 +48,32 @@ public class Alignment
 		possibleAlignments.add(alignment);
 	}
 
+	/**
+	 * Adds an alignment together with a link strength, such as the posterior
+	 * probability of the link.
+	 */
+	public void addAlignment(int englishPosition, int frenchPosition, boolean sure, double strength) {
+		if (englishPosition < 0 || frenchPosition < 0) return;
+		addAlignment(englishPosition, frenchPosition, sure);
+		strengths.put(new Pair<Integer, Integer>(englishPosition, frenchPosition), strength);
+	}
+
+	public boolean hasStrength(int englishPosition, int frenchPosition) {
+		return strengths.containsKey(new Pair<Integer, Integer>(englishPosition, frenchPosition));
+	}
+
+	/**
+	 * Returns the strength of a link, or zero if the link has none.
+	 */
+	public double getStrength(int englishPosition, int frenchPosition) {
+		Double strength = strengths.get(new Pair<Integer, Integer>(englishPosition, frenchPosition));
+		return strength == null ? 0.0 : strength;
+	}
+
 	public Alignment() {
 		sureAlignments = new HashSet<Pair<Integer, Integer>>();
 		possibleAlignments = new HashSet<Pair<Integer, Integer>>();
+		strengths = new HashMap<Pair<Integer, Integer>, Double>();
 	}
 
 	public static String render(Alignment alignment, SentencePair sentencePair) {
@@ -238,6 +263,24 @@ public class Alignment
 		return sureAlignments;
 	}
 
+	/**
+	 * Returns all sure and possible links, carrying their strengths when the
+	 * alignment has them.
+	 */
+	public List<Link> getLinks() {
+		List<Link> links = new ArrayList<Link>();
+		for (Pair<Integer, Integer> al : possibleAlignments) {
+			LinkState state = sureAlignments.contains(al) ? LinkState.SURE : LinkState.POSS;
+			Double strength = strengths.get(al);
+			if (strength == null) {
+				links.add(new Link(al.getFirst(), al.getSecond(), state == LinkState.SURE));
+			} else {
+				links.add(new Link(al.getFirst(), al.getSecond(), state, strength));
+			}
+		}
+		return links;
+	}
+
 	public Alignment getReverseCopy() {
 		Alignment al = new Alignment();
 		for (Pair<Integer, Integer> a : sureAlignments) {
@@ -246,6 +289,10 @@ public class Alignment
 		for (Pair<Integer, Integer> a : possibleAlignments) {
 			al.addAlignment(a.getSecond(), a.getFirst(), false);
 		}
+		for (Map.Entry<Pair<Integer, Integer>, Double> entry : strengths.entrySet()) {
+			Pair<Integer, Integer> a = entry.getKey();
+			al.strengths.put(new Pair<Integer, Integer>(a.getSecond(), a.getFirst()), entry.getValue());
+		}
 		return al;
 	}
 
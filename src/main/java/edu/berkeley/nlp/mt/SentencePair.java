@@ -7,11 +7,15 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import edu.berkeley.nlp.io.IOUtils;
 import edu.berkeley.nlp.mt.SentencePairReader.PairDepot;
 import edu.berkeley.nlp.mt.SentencePairReader.PairIterator;
+import edu.berkeley.nlp.mt.decoder.Logger;
+import edu.berkeley.nlp.util.Filter;
 import edu.berkeley.nlp.util.Filters;
 import edu.berkeley.nlp.util.Pair;
 
@@ -36,14 +40,72 @@ public class SentencePair implements Serializable
 
 	}
 
+	/**
+	 * Like readSentencePairs, but only keeps the pairs that pass the filter.
+	 */
+	public static Iterable<SentencePair> readSentencePairs(String path, int maxSentencePairs, Filter<SentencePair> filter) {
+		SentencePairReader sentencePairReader = new SentencePairReader();
+		sentencePairReader.setForeignExtension(FRENCH_EXTENSION);
+		sentencePairReader.setEnglishExtension(ENGLISH_EXTENSION);
+		return sentencePairReader.pairDepotFromSource(path, 0, maxSentencePairs, filter, false);
+	}
+
+	/**
+	 * Like readSentencePairs, but does not cache the sentence pairs in memory.
+	 * Every iteration re-reads the files from disk.
+	 */
+	public static Iterable<SentencePair> streamSentencePairs(String path, int maxSentencePairs) {
+		return streamSentencePairs(path, maxSentencePairs, Filters.<SentencePair> acceptFilter());
+	}
+
+	public static Iterable<SentencePair> streamSentencePairs(String path, int maxSentencePairs, Filter<SentencePair> filter) {
+		SentencePairReader sentencePairReader = new SentencePairReader();
+		sentencePairReader.setForeignExtension(FRENCH_EXTENSION);
+		sentencePairReader.setEnglishExtension(ENGLISH_EXTENSION);
+		return sentencePairReader.pairDepotFromSource(path, 0, maxSentencePairs, filter, true);
+	}
+
+	/**
+	 * Collapses repeated sentence pairs (with the same words) into their
+	 * first occurrence, whose count becomes the total count of the repeats.
+	 * Trainers weight the expected counts of a pair by its count, so
+	 * training on the result gives the same model as training on all pairs.
+	 */
+	public static List<SentencePair> deduplicate(Iterable<SentencePair> sentencePairs) {
+		Map<Pair<List<String>, List<String>>, SentencePair> firstOccurrences = new HashMap<Pair<List<String>, List<String>>, SentencePair>();
+		List<SentencePair> uniquePairs = new ArrayList<SentencePair>();
+		int numPairs = 0;
+		for (SentencePair pair : sentencePairs) {
+			numPairs += pair.count;
+			Pair<List<String>, List<String>> key = new Pair<List<String>, List<String>>(pair.englishWords, pair.frenchWords);
+			SentencePair first = firstOccurrences.get(key);
+			if (first == null) {
+				firstOccurrences.put(key, pair);
+				uniquePairs.add(pair);
+			} else {
+				first.count += pair.count;
+			}
+		}
+		Logger.logss("Deduplicated %d sentence pairs into %d", numPairs, uniquePairs.size());
+		return uniquePairs;
+	}
+
 	public SentencePair getReversedCopy() {
-		return new SentencePair(this.getSentenceID(), this.getSourceFile(), this.getFrenchWords(), this.getEnglishWords());
+		SentencePair reversed = new SentencePair(this.getSentenceID(), this.getSourceFile(), this.getFrenchWords(), this.getEnglishWords());
+		reversed.count = count;
+		return reversed;
 	}
 
 	int sentenceID;
 
+	// Set while sentenceID is still relative to the start of its file
+	transient boolean provisionalID;
+
 	String sourceFile;
 
+	// Number of occurrences in the corpus, after deduplication
+	int count = 1;
+
 	public List<String> englishWords;
 
 	public List<String> frenchWords;
@@ -56,6 +118,14 @@ public class SentencePair implements Serializable
 		return sourceFile;
 	}
 
+	public int getCount() {
+		return count;
+	}
+
+	public void setCount(int count) {
+		this.count = count;
+	}
+
 	public List<String> getEnglishWords() {
 		return englishWords;
 	}
@@ -0,0 +1,219 @@
+package edu.berkeley.nlp.mt;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.berkeley.nlp.mt.decoder.Logger;
+import edu.berkeley.nlp.util.Filter;
+
+/**
+ * Drops sentence pairs that cost a lot to align and add little to the model:
+ * pairs with an empty side, pairs with a side longer than maxLength words,
+ * pairs whose lengths differ by more than a factor of maxLengthRatio, and
+ * repeats of a pair seen before. Model 1 and HMM training cost O(|E| |F|)
+ * per pair, so a few very long pairs can dominate an iteration.
+ *
+ * The checks only need word counts (and a hash of the words for duplicates),
+ * so PairIterator runs them on the raw lines, before tokenizing. Rejected
+ * pairs are counted by reason, over every read of the corpus.
+ *
+ * Duplicates are recognized by a 64-bit hash of the words of both sides.
+ * The filter remembers where each hash was first seen, so that a corpus can
+ * be read again (as a streaming PairDepot is, once per pass) without every
+ * pair then looking like a duplicate of itself. When several threads load a
+ * corpus, which copy of a duplicate pair is kept is not deterministic.
+ */
+public class SentencePairFilter implements Filter<SentencePair>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	public enum Rejection
+	{
+		EMPTY, TOO_LONG, LENGTH_RATIO, DUPLICATE
+	}
+
+	private final int maxLength;
+
+	private final double maxLengthRatio;
+
+	private final boolean dropEmpty;
+
+	private final boolean dropDuplicates;
+
+	/** A position for pairs that have none, which never matches. */
+	public static final long NO_POSITION = Long.MIN_VALUE;
+
+	// Hash of a pair -> position where it was first seen
+	private final Map<Long, Long> seenPairs = new HashMap<Long, Long>();
+
+	private final AtomicLongArray rejected = new AtomicLongArray(Rejection.values().length);
+
+	/**
+	 * @param maxLength
+	 *            Maximum number of words on either side, or 0 for no limit
+	 * @param maxLengthRatio
+	 *            Maximum ratio of the longer to the shorter side, or 0 for no
+	 *            limit
+	 */
+	public SentencePairFilter(int maxLength, double maxLengthRatio, boolean dropEmpty, boolean dropDuplicates) {
+		this.maxLength = maxLength;
+		this.maxLengthRatio = maxLengthRatio;
+		this.dropEmpty = dropEmpty;
+		this.dropDuplicates = dropDuplicates;
+	}
+
+	/**
+	 * Checks the lengths of a pair only.
+	 *
+	 * @return The reason to reject the pair, or null to accept it
+	 */
+	public Rejection checkLengths(int englishLength, int frenchLength) {
+		if (englishLength == 0 || frenchLength == 0) return dropEmpty ? Rejection.EMPTY : null;
+		if (maxLength > 0 && (englishLength > maxLength || frenchLength > maxLength)) return Rejection.TOO_LONG;
+		if (maxLengthRatio > 0) {
+			int longer = Math.max(englishLength, frenchLength);
+			int shorter = Math.min(englishLength, frenchLength);
+			if (longer > maxLengthRatio * shorter) return Rejection.LENGTH_RATIO;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks a pair given as ranges of raw sentence lines, without tokenizing
+	 * them. A pair that passes is remembered for duplicate detection. Does
+	 * not count the rejection.
+	 *
+	 * @param position
+	 *            Where the pair is in the corpus (e.g. file and line), stable
+	 *            across reads, or NO_POSITION
+	 * @return The reason to reject the pair, or null to accept it
+	 */
+	public Rejection check(String englishLine, int englishStart, int englishEnd, String frenchLine, int frenchStart, int frenchEnd,
+		long position) {
+		Rejection rejection = checkLengths(countWords(englishLine, englishStart, englishEnd), countWords(frenchLine, frenchStart, frenchEnd));
+		if (rejection != null || !dropDuplicates) return rejection;
+		long hash = hashWords(englishLine, englishStart, englishEnd, FNV_OFFSET);
+		hash = hashWords(frenchLine, frenchStart, frenchEnd, (hash ^ '|') * FNV_PRIME);
+		return isFirstSeen(hash, position) ? null : Rejection.DUPLICATE;
+	}
+
+	/**
+	 * Checks and counts a pair of raw sentence lines.
+	 */
+	public boolean acceptLines(String englishLine, String frenchLine, long position) {
+		return count(check(englishLine, 0, englishLine.length(), frenchLine, 0, frenchLine.length(), position));
+	}
+
+	/**
+	 * Checks and counts a tokenized pair. Its position is taken from its
+	 * source file and sentence ID.
+	 */
+	public boolean accept(SentencePair pair) {
+		List<String> englishWords = pair.getEnglishWords();
+		List<String> frenchWords = pair.getFrenchWords();
+		Rejection rejection = checkLengths(englishWords.size(), frenchWords.size());
+		if (rejection == null && dropDuplicates) {
+			long hash = FNV_OFFSET;
+			for (String word : englishWords) {
+				hash = hashWords(word, 0, word.length(), hash);
+			}
+			hash = (hash ^ '|') * FNV_PRIME;
+			for (String word : frenchWords) {
+				hash = hashWords(word, 0, word.length(), hash);
+			}
+			long position = ((long) String.valueOf(pair.getSourceFile()).hashCode() << 32) ^ pair.getSentenceID();
+			if (!isFirstSeen(hash, position)) rejection = Rejection.DUPLICATE;
+		}
+		return count(rejection);
+	}
+
+	/**
+	 * Counts a rejection (if not null).
+	 *
+	 * @return Whether the pair was accepted
+	 */
+	public boolean count(Rejection rejection) {
+		if (rejection == null) return true;
+		rejected.incrementAndGet(rejection.ordinal());
+		return false;
+	}
+
+	public long getRejected(Rejection rejection) {
+		return rejected.get(rejection.ordinal());
+	}
+
+	public long getRejectedTotal() {
+		long total = 0;
+		for (Rejection rejection : Rejection.values()) {
+			total += getRejected(rejection);
+		}
+		return total;
+	}
+
+	public void logRejections() {
+		Logger.logss("Rejected %d sentence pairs: %d empty, %d too long, %d bad length ratio, %d duplicates", getRejectedTotal(),
+			getRejected(Rejection.EMPTY), getRejected(Rejection.TOO_LONG), getRejected(Rejection.LENGTH_RATIO),
+			getRejected(Rejection.DUPLICATE));
+	}
+
+	private boolean isFirstSeen(long hash, long position) {
+		synchronized (seenPairs) {
+			Long firstPosition = seenPairs.get(hash);
+			if (firstPosition == null) {
+				seenPairs.put(hash, position);
+				return true;
+			}
+			return position != NO_POSITION && firstPosition == position;
+		}
+	}
+
+	/**
+	 * Counts the whitespace-separated words in a range of a sentence line,
+	 * not counting sentence markup.
+	 */
+	public static int countWords(String line, int start, int end) {
+		int count = 0;
+		int i = start;
+		while (true) {
+			while (i < end && SentenceTokenizer.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == end) break;
+			int wordStart = i;
+			while (i < end && !SentenceTokenizer.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (!SentenceTokenizer.isMarkupToken(line, wordStart, i)) count++;
+		}
+		return count;
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// FNV-1a over the words of the range, each followed by a separator
+	private static long hashWords(String line, int start, int end, long hash) {
+		int i = start;
+		while (true) {
+			while (i < end && SentenceTokenizer.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == end) break;
+			int wordStart = i;
+			while (i < end && !SentenceTokenizer.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (SentenceTokenizer.isMarkupToken(line, wordStart, i)) continue;
+			for (int j = wordStart; j < i; j++) {
+				hash = (hash ^ line.charAt(j)) * FNV_PRIME;
+			}
+			hash = (hash ^ ' ') * FNV_PRIME;
+		}
+		return hash;
+	}
+
+}
@@ -1,6 +1,7 @@
 package edu.berkeley.nlp.mt;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -8,12 +9,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import edu.berkeley.nlp.io.IOUtils;
+import edu.berkeley.nlp.io.LineIndex;
 import edu.berkeley.nlp.io.SuffixFilter;
 import edu.berkeley.nlp.mt.decoder.Logger;
 import edu.berkeley.nlp.util.CollectionUtils;
@@ -21,6 +32,7 @@ import edu.berkeley.nlp.util.Factory;
 import edu.berkeley.nlp.util.Filter;
 import edu.berkeley.nlp.util.Filters;
 import edu.berkeley.nlp.util.Pair;
+import edu.berkeley.nlp.util.StringIndexer;
 
 /**
  * TODO Add tag reading
@@ -68,39 +80,117 @@ public class SentencePairReader
 			if (!batch) loadSentenceCache();
 		}
 
+		/**
+		 * Returns the number of pairs. Without a filter this comes from the
+		 * files' line indices; otherwise the pairs are read and counted.
+		 */
 		public int size() {
 			if (size >= 0) return size;
 			if (pairs != null) {
 				size = pairs.size();
+			} else if (Filters.acceptsAll(filter)) {
+				size = indexedSize();
 			} else {
 				int count = 0;
 				Iterator<SentencePair> it = this.iterator();
-				while (it.hasNext()) {
-					it.next();
-					count++;
+				try {
+					while (it.hasNext()) {
+						it.next();
+						count++;
+					}
+				} finally {
+					closeIterator(it);
 				}
 				size = count;
 			}
 			return size;
 		}
 
+		/**
+		 * The number of pairs according to the line indices of the files,
+		 * ignoring the filter.
+		 */
+		private int indexedSize() {
+			long total = 0;
+			for (String file : getBaseFileNames(sources)) {
+				total += countLinePairs(file);
+			}
+			return (int) Math.max(0, Math.min(maxPairs, total - offset));
+		}
+
+		/**
+		 * Returns a batch depot over one of numShards contiguous, evenly sized
+		 * ranges of the pairs of this depot, to be read by a separate thread or
+		 * task. With a filter, finding the ranges takes a pass over the data.
+		 * Shards read on concurrent threads share the reader's vocabulary under
+		 * its lock; pairs without an snum get unique sentence IDs, but which
+		 * IDs depends on how the threads interleave.
+		 */
+		public PairDepot shard(int shardIndex, int numShards) {
+			if (shardIndex < 0 || shardIndex >= numShards) {
+				throw new IllegalArgumentException("Shard " + shardIndex + " of " + numShards);
+			}
+			long total = size();
+			int start = (int) (total * shardIndex / numShards);
+			int end = (int) (total * (shardIndex + 1) / numShards);
+			return new PairDepot(sources, offset + start, end - start, filter, true, ignoreAnnotations);
+		}
+
 		public Iterator<SentencePair> iterator() {
 			// If pairs are loaded already, return them
 			if (pairs != null) return pairs.iterator();
 
-			// Factory to generate iterators from source strings
-			Factory<String, Iterator<SentencePair>> factory = new Factory<String, Iterator<SentencePair>>()
-			{
-				public Iterator<SentencePair> newInstance(String src) {
-					return getSentencePairIteratorFromSource(src, filter, ignoreAnnotations);
+			List<String> files = getBaseFileNames(sources);
+
+			// If every pair counts towards the offset, skip it without parsing:
+			// whole files by their line counts, and the rest by raw lines (or a
+			// seek) at the start of the first file read.
+			int firstFileSkip = 0;
+			boolean offsetSkipped = false;
+			if (offset > 0 && Filters.acceptsAll(filter)) {
+				int remaining = offset;
+				int skippedFiles = 0;
+				while (skippedFiles < files.size()) {
+					int numLines = countLinePairs(files.get(skippedFiles));
+					if (numLines > remaining) break;
+					remaining -= numLines;
+					currSentenceID.addAndGet(-numLines);
+					skippedFiles++;
+				}
+				if (skippedFiles == files.size() && remaining > 0) {
+					Logger.err("Pairs available (%d) less than offset (%d)", offset - remaining, offset);
 				}
-			};
+				files = files.subList(skippedFiles, files.size());
+				firstFileSkip = remaining;
+				offsetSkipped = true;
+			}
 
-			// Create the iterator (which iterates over sources internally)
-			Iterator<SentencePair> iter = new CollectionUtils.IteratorIterator<String, SentencePair>(sources.iterator(), factory);
+			Iterator<SentencePair> iter;
+			ParallelPairIterator parallelIter = null;
+			if (numLoaderThreads > 1) {
+				// Read and parse files concurrently, in order
+				parallelIter = new ParallelPairIterator(files, firstFileSkip, filter, ignoreAnnotations);
+				iter = parallelIter;
+			} else {
+				// Factory to generate iterators from file names
+				final int skip = firstFileSkip;
+				Factory<String, Iterator<SentencePair>> factory = new Factory<String, Iterator<SentencePair>>()
+				{
+					boolean first = true;
+
+					public Iterator<SentencePair> newInstance(String file) {
+						PairIterator it = new PairIterator(file, filter, ignoreAnnotations, false, first ? skip : 0);
+						first = false;
+						return it;
+					}
+				};
+
+				// Create the iterator (which iterates over files internally)
+				iter = new CollectionUtils.IteratorIterator<String, SentencePair>(files.iterator(), factory);
+			}
 
 			// Burn off the offset
-			for (int i = 0; i < offset; i++) {
+			for (int i = 0; i < offset && !offsetSkipped; i++) {
 				if (iter.hasNext()) {
 					iter.next();
 				} else {
@@ -109,6 +199,7 @@ public class SentencePairReader
 				}
 			}
 
+			if (parallelIter != null) return new LimitedParallelPairIterator(parallelIter, maxPairs);
 			return CollectionUtils.maxLengthIterator(iter, maxPairs);
 		}
 
@@ -117,9 +208,16 @@ public class SentencePairReader
 		 */
 		public List<SentencePair> asList() {
 			if (pairs != null) return pairs;
-			ArrayList<SentencePair> allPairs = new ArrayList<SentencePair>(Math.max(0, size));
-			for (SentencePair pair : this) {
-				allPairs.add(pair);
+			// Size the list from the line indices if that needs no pass over the data
+			int expectedSize = size >= 0 ? size : Filters.acceptsAll(filter) ? size() : 0;
+			ArrayList<SentencePair> allPairs = new ArrayList<SentencePair>(expectedSize);
+			Iterator<SentencePair> it = this.iterator();
+			try {
+				while (it.hasNext()) {
+					allPairs.add(it.next());
+				}
+			} finally {
+				closeIterator(it);
 			}
 			return allPairs;
 		}
@@ -132,10 +230,15 @@ public class SentencePairReader
 		}
 
 		/**
-         *
-         */
+		 * Loads all sentence pairs into memory, and logs the ingestion
+		 * throughput.
+		 */
 		public List<SentencePair> loadSentenceCache() {
+			if (pairs != null) return pairs;
+			long startChars = charsRead.get();
+			long startTime = System.nanoTime();
 			pairs = asList();
+			logThroughput(pairs.size(), charsRead.get() - startChars, System.nanoTime() - startTime);
 			return pairs;
 		}
 
@@ -177,24 +280,60 @@ public class SentencePairReader
 
 		private boolean isEmpty;
 
+		private SentenceTokenizer tokenizer;
+
+		// If set, pairs without an snum get IDs relative to the start of the
+		// file, to be made global by whoever consumes the files in order
+		private boolean localSentenceIDs;
+
+		private int linesRead;
+
+		// The global ID of the line pair being parsed, if IDs are not local
+		private int lineID;
+
 		private void setInputFileNames(String baseFileName) {
 			englishFN = baseFileName + "." + englishExtension;
 			foreignFN = baseFileName + "." + foreignExtension;
 		}
 
 		private SentencePair readNextSentencePair(String englishLine, String frenchLine, String baseFileName) {
-			Pair<Integer, List<String>> englishIDAndSentence = readSentence(englishLine);
-			Pair<Integer, List<String>> frenchIDAndSentence = readSentence(frenchLine);
+			charsRead.addAndGet(englishLine.length() + frenchLine.length() + 2);
+
+			int enID, frID;
+			List<String> englishWords, frenchWords;
+			if (fastTokenizer) {
+				englishWords = new ArrayList<String>();
+				tokenizer.tokenize(englishLine, englishWords);
+				enID = tokenizer.getSentenceID();
+				frenchWords = new ArrayList<String>();
+				tokenizer.tokenize(frenchLine, frenchWords);
+				frID = tokenizer.getSentenceID();
+			} else {
+				Pair<Integer, List<String>> englishIDAndSentence = readSentence(englishLine);
+				Pair<Integer, List<String>> frenchIDAndSentence = readSentence(frenchLine);
+				enID = englishIDAndSentence.getFirst();
+				frID = frenchIDAndSentence.getFirst();
+				englishWords = englishIDAndSentence.getSecond();
+				frenchWords = frenchIDAndSentence.getSecond();
+			}
 
-			int enID = englishIDAndSentence.getFirst();
-			int frID = frenchIDAndSentence.getFirst();
 			if (enID != frID)
 				throw new RuntimeException("Sentence ID confusion in file " + baseFileName + ", lines were:\n\t" + englishLine + "\n\t" + frenchLine);
-			if (enID == -1) enID = frID = currSentenceID;
-			SentencePair sp = new SentencePair(enID, baseFileName, englishIDAndSentence.getSecond(), frenchIDAndSentence.getSecond());
+			boolean provisionalID = false;
+			if (enID == -1) {
+				if (localSentenceIDs) {
+					enID = frID = -linesRead;
+					provisionalID = true;
+				} else {
+					enID = frID = lineID;
+				}
+			}
+			SentencePair sp = new SentencePair(enID, baseFileName, englishWords, frenchWords);
+			sp.provisionalID = provisionalID;
 			return sp;
 		}
 
+		// The original regex-based tokenizer, kept for comparison
 		private Pair<Integer, List<String>> readSentence(String line) {
 			int id = -1;
 			List<String> words = new ArrayList<String>();
@@ -215,21 +354,76 @@ public class SentencePairReader
 		}
 
 		public PairIterator(String baseFileName, Filter<SentencePair> filter, boolean ignoreAnnotations) {
+			this(baseFileName, filter, ignoreAnnotations, false);
+		}
+
+		/**
+		 * @param localSentenceIDs
+		 *            Whether to number sentences without an snum relative to
+		 *            the start of this file, instead of from the reader's
+		 *            global counter. Used when files are read concurrently.
+		 */
+		public PairIterator(String baseFileName, Filter<SentencePair> filter, boolean ignoreAnnotations, boolean localSentenceIDs) {
+			this(baseFileName, filter, ignoreAnnotations, localSentenceIDs, 0);
+		}
+
+		/**
+		 * @param skipLines
+		 *            Number of line pairs to skip at the start of the files
+		 *            without parsing them. Uses the files' line indices to
+		 *            seek when the files are uncompressed.
+		 */
+		public PairIterator(String baseFileName, Filter<SentencePair> filter, boolean ignoreAnnotations, boolean localSentenceIDs, int skipLines) {
 			this.baseFileName = new File(baseFileName).getPath();
 			this.filter = filter;
+			this.localSentenceIDs = localSentenceIDs;
+			this.tokenizer = newTokenizer();
 			setInputFileNames(baseFileName);
 
 			// Open all relevant files, setting a dead state if they don't exist
-			englishIn = IOUtils.openInHard(englishFN);
-			frenchIn = IOUtils.openInHard(foreignFN);
+			int skipped = openAtLine(skipLines);
+			linesRead += skipped;
+			if (!localSentenceIDs) currSentenceID.addAndGet(-skipped);
 
 			loadNext();
 
 		}
 
+		/**
+		 * Opens both files positioned at the given line.
+		 * 
+		 * @return The number of lines skipped, less than line if the files are
+		 *         shorter
+		 */
+		private int openAtLine(int line) {
+			try {
+				int englishSkipped = 0, frenchSkipped = 0;
+				if (line >= LineIndex.STRIDE && !IOUtils.isCompressed(englishFN) && !IOUtils.isCompressed(foreignFN)) {
+					LineIndex englishIndex = LineIndex.forFile(new File(englishFN));
+					LineIndex frenchIndex = LineIndex.forFile(new File(foreignFN));
+					englishIn = IOUtils.openIn(new File(englishFN), englishIndex.offsetOfIndexedLineBefore(line));
+					frenchIn = IOUtils.openIn(new File(foreignFN), frenchIndex.offsetOfIndexedLineBefore(line));
+					englishSkipped = englishIndex.indexedLineBefore(line);
+					frenchSkipped = frenchIndex.indexedLineBefore(line);
+				} else {
+					englishIn = IOUtils.openIn(englishFN);
+					frenchIn = IOUtils.openIn(foreignFN);
+				}
+				englishSkipped += IOUtils.skipLines(englishIn, line - englishSkipped);
+				frenchSkipped += IOUtils.skipLines(frenchIn, line - frenchSkipped);
+				if (englishSkipped != frenchSkipped) {
+					Logger.warn("%s and %s files are different lengths (%s)", englishExtension, foreignExtension, baseFileName);
+				}
+				return Math.min(englishSkipped, frenchSkipped);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
 		public PairIterator(String enFile, String foreignFile, String alignFile, String englishTreesFile) {
 			this.baseFileName = "";
 			this.filter = Filters.acceptFilter();
+			this.tokenizer = newTokenizer();
 			englishFN = enFile;
 			foreignFN = foreignFile;
 			englishIn = IOUtils.openInHard(enFile);
@@ -253,14 +447,27 @@ public class SentencePairReader
 		private void loadNext() {
 			try {
 				next = null;
-				if (englishIn.ready() != frenchIn.ready()) {
-					Logger.warn("%s and %s files are different lengths (%s)", englishExtension, foreignExtension, baseFileName);
-				}
-				while (next == null && englishIn.ready() && frenchIn.ready()) {
+				while (next == null && englishIn != null) {
 					// Check bounds on desired sentences
 					String englishLine = englishIn.readLine();
 					String frenchLine = frenchIn.readLine();
-					currSentenceID--;
+					if (englishLine == null || frenchLine == null) {
+						if (englishLine != null || frenchLine != null) {
+							Logger.warn("%s and %s files are different lengths (%s)", englishExtension, foreignExtension, baseFileName);
+						}
+						finish();
+						break;
+					}
+					linesRead++;
+					if (!localSentenceIDs) lineID = currSentenceID.decrementAndGet();
+
+					// A SentencePairFilter rejects on the raw lines, before they are tokenized
+					if (filter instanceof SentencePairFilter) {
+						long position = ((long) baseFileName.hashCode() << 32) | linesRead;
+						if (!((SentencePairFilter) filter).acceptLines(englishLine, frenchLine, position)) continue;
+						next = readNextSentencePair(englishLine, frenchLine, baseFileName);
+						continue;
+					}
 
 					// Construct sentence pair
 					SentencePair pair = readNextSentencePair(englishLine, frenchLine, baseFileName);
@@ -287,10 +494,29 @@ public class SentencePairReader
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
-			currSentenceID--;
+			linesRead++;
+			if (!localSentenceIDs) currSentenceID.decrementAndGet();
 		}
 
+		/**
+		 * @return The number of line pairs read from the files so far
+		 */
+		public int getLinesRead() {
+			return linesRead;
+		}
+
+		/**
+		 * Closes the files. Called at end of file.
+		 */
 		public void finish() {
+			if (englishIn == null) return;
+			try {
+				englishIn.close();
+				frenchIn.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			englishIn = frenchIn = null;
 		}
 
 	}
@@ -307,7 +533,256 @@ public class SentencePairReader
 
 	private String foreignExtension = "fr";
 
-	private static int currSentenceID = 0;
+	// Shared by all readers and threads; decremented once per line read
+	private static AtomicInteger currSentenceID = new AtomicInteger();
+
+	// Words are deduplicated in this reader's own table, not String.intern().
+	// Iterators may run on different threads, so they only access it under
+	// its lock (see newTokenizer()).
+	private StringIndexer vocabulary = new StringIndexer();
+
+	private boolean fastTokenizer = true;
+
+	private AtomicLong charsRead = new AtomicLong();
+
+	private int numLoaderThreads = 1;
+
+	private int readAhead = 8;
+
+	/**
+	 * Creates a tokenizer for one iterator. It looks words up in a vocabulary
+	 * of its own and takes the String instances of new words from the
+	 * reader's vocabulary, under its lock, so that iterators running on
+	 * different threads (loader threads, or shards) can share the reader.
+	 */
+	private SentenceTokenizer newTokenizer() {
+		return new SentenceTokenizer(new StringIndexer(), vocabulary);
+	}
+
+	/**
+	 * The sentence pairs of one file, read by a loader thread.
+	 */
+	private static class LoadedFile
+	{
+		final List<SentencePair> pairs = new ArrayList<SentencePair>();
+
+		int linesRead;
+	}
+
+	/**
+	 * Reads one file on a loader thread. Holds no reference to the iterator
+	 * that submitted it, so an abandoned iterator can be collected while
+	 * loads are still queued.
+	 */
+	private class FileLoader implements Callable<LoadedFile>
+	{
+		private final String file;
+
+		private final int skip;
+
+		private final Filter<SentencePair> filter;
+
+		private final boolean ignoreAnnotations;
+
+		FileLoader(String file, int skip, Filter<SentencePair> filter, boolean ignoreAnnotations) {
+			this.file = file;
+			this.skip = skip;
+			this.filter = filter;
+			this.ignoreAnnotations = ignoreAnnotations;
+		}
+
+		public LoadedFile call() {
+			LoadedFile loaded = new LoadedFile();
+			PairIterator it = new PairIterator(file, filter, ignoreAnnotations, true, skip);
+			while (it.hasNext()) {
+				loaded.pairs.add(it.next());
+			}
+			loaded.linesRead = it.getLinesRead();
+			return loaded;
+		}
+	}
+
+	private ExecutorService loaderPool;
+
+	/**
+	 * The reader's pool of loader threads, created on first use and shared by
+	 * all its iterators until close().
+	 */
+	private synchronized ExecutorService loaderPool() {
+		if (loaderPool == null) {
+			loaderPool = Executors.newFixedThreadPool(numLoaderThreads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "pair-loader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return loaderPool;
+	}
+
+	/**
+	 * Shuts down the loader threads, cancelling the loads of iterators that
+	 * were not read to the end. The reader creates new threads if it is used
+	 * again.
+	 */
+	public synchronized void close() {
+		if (loaderPool != null) {
+			loaderPool.shutdownNow();
+			loaderPool = null;
+		}
+	}
+
+	/**
+	 * Reads files on the reader's pool of loader threads, up to readAhead
+	 * files ahead of the consumer, and returns their sentence pairs in file
+	 * order. Sentence IDs are assigned as the files are consumed, so they are
+	 * the same as with sequential reading. A consumer that stops early must
+	 * close() the iterator to cancel the pending loads; the reader's close()
+	 * cancels those of all its iterators.
+	 */
+	private class ParallelPairIterator implements Iterator<SentencePair>, Closeable
+	{
+		private final Iterator<String> files;
+
+		private int firstFileSkip;
+
+		private final Filter<SentencePair> filter;
+
+		private final boolean ignoreAnnotations;
+
+		private final ExecutorService pool;
+
+		private final LinkedList<Future<LoadedFile>> pending = new LinkedList<Future<LoadedFile>>();
+
+		private Iterator<SentencePair> current = null;
+
+		public ParallelPairIterator(List<String> files, int firstFileSkip, Filter<SentencePair> filter, boolean ignoreAnnotations) {
+			this.files = files.iterator();
+			this.firstFileSkip = firstFileSkip;
+			this.filter = filter;
+			this.ignoreAnnotations = ignoreAnnotations;
+			this.pool = loaderPool();
+			while (pending.size() < readAhead && submitNext()) {
+			}
+			current = nextFile();
+		}
+
+		private boolean submitNext() {
+			if (!files.hasNext()) return false;
+			pending.add(pool.submit(new FileLoader(files.next(), firstFileSkip, filter, ignoreAnnotations)));
+			firstFileSkip = 0;
+			return true;
+		}
+
+		// Returns an iterator over the next file with pairs, or null
+		private Iterator<SentencePair> nextFile() {
+			while (!pending.isEmpty()) {
+				LoadedFile loaded;
+				try {
+					loaded = pending.removeFirst().get();
+				} catch (Exception e) {
+					close();
+					throw new RuntimeException(e);
+				}
+				submitNext();
+
+				// Make the file-relative IDs global, as sequential reading would
+				int firstID = currSentenceID.getAndAdd(-loaded.linesRead);
+				for (SentencePair pair : loaded.pairs) {
+					if (pair.provisionalID) {
+						pair.sentenceID += firstID;
+						pair.provisionalID = false;
+					}
+				}
+
+				if (!loaded.pairs.isEmpty()) return loaded.pairs.iterator();
+			}
+			return null;
+		}
+
+		/**
+		 * Cancels the loads that are still pending and drops the rest of the
+		 * files.
+		 */
+		public void close() {
+			for (Future<LoadedFile> future : pending) {
+				future.cancel(true);
+			}
+			pending.clear();
+			current = null;
+		}
+
+		public boolean hasNext() {
+			return current != null;
+		}
+
+		public SentencePair next() {
+			if (current == null) throw new NoSuchElementException();
+			SentencePair next = current.next();
+			if (!current.hasNext()) current = nextFile();
+			return next;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Returns at most maxPairs pairs of a ParallelPairIterator, and closes it
+	 * once they have been returned, so that reading the first maxPairs pairs
+	 * cancels the loads of the files after them.
+	 */
+	private static class LimitedParallelPairIterator implements Iterator<SentencePair>, Closeable
+	{
+		private final ParallelPairIterator base;
+
+		private final int maxPairs;
+
+		private int count = 0;
+
+		LimitedParallelPairIterator(ParallelPairIterator base, int maxPairs) {
+			this.base = base;
+			this.maxPairs = maxPairs;
+			if (maxPairs <= 0) base.close();
+		}
+
+		public boolean hasNext() {
+			return count < maxPairs && base.hasNext();
+		}
+
+		public SentencePair next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			SentencePair next = base.next();
+			if (++count >= maxPairs) base.close();
+			return next;
+		}
+
+		public void close() {
+			base.close();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Closes an iterator returned by a PairDepot if it holds resources, as
+	 * one reading files on loader threads does. Callers that may stop before
+	 * the end should call this when they are done.
+	 */
+	public static void closeIterator(Iterator<SentencePair> it) {
+		if (it instanceof Closeable) {
+			try {
+				((Closeable) it).close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
 
 	/**
 	 * Creates a sentence pair reader that does not save inputs.
@@ -408,6 +883,30 @@ public class SentencePairReader
 	//		Logger.endTrack();
 	//	}
 
+	/**
+	 * Returns the base file names of all sources, in reading order.
+	 */
+	private List<String> getBaseFileNames(List<String> sources) {
+		List<String> files = new ArrayList<String>();
+		for (String source : sources) {
+			List<String> sourceFiles = getBaseFileNamesFromSource(source);
+			if (sourceFiles.size() == 0) Logger.err("No files found at source " + source);
+			Collections.sort(sourceFiles);
+			files.addAll(sourceFiles);
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the number of line pairs of a pair of files, from their
+	 * (possibly freshly built) line indices.
+	 */
+	private int countLinePairs(String baseFileName) {
+		int englishLines = LineIndex.forFile(new File(baseFileName + "." + englishExtension)).getNumLines();
+		int frenchLines = LineIndex.forFile(new File(baseFileName + "." + foreignExtension)).getNumLines();
+		return Math.min(englishLines, frenchLines);
+	}
+
 	// If path is a directory, return the list of files in the directory
 	// If path is a file, return the files whose names are in the path file
 	private List<String> getBaseFileNamesFromSource(String path) {
@@ -506,6 +1005,59 @@ public class SentencePairReader
 		this.foreignExtension = ext;
 	}
 
+	/**
+	 * Sets the vocabulary used to deduplicate words. Sharing one vocabulary
+	 * between readers makes equal words the same String instance. Readers
+	 * access it only while synchronized on it, and so must other users while
+	 * pairs are being read.
+	 */
+	public void setVocabulary(StringIndexer vocabulary) {
+		this.vocabulary = vocabulary;
+	}
+
+	public StringIndexer getVocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * Chooses between the character-scanning tokenizer (the default) and the
+	 * original regex-based one, e.g. to compare their throughput.
+	 */
+	public void setFastTokenizer(boolean fastTokenizer) {
+		this.fastTokenizer = fastTokenizer;
+	}
+
+	/**
+	 * @return The number of characters of sentence text read so far
+	 */
+	public long getCharsRead() {
+		return charsRead.get();
+	}
+
+	/**
+	 * Sets the number of threads that read and parse files concurrently
+	 * (1, the default, reads them sequentially on the calling thread).
+	 * Filters must then be thread-safe.
+	 */
+	public void setNumLoaderThreads(int numLoaderThreads) {
+		this.numLoaderThreads = numLoaderThreads;
+		// The pool is recreated with the new size on next use
+		close();
+	}
+
+	/**
+	 * Sets how many files the loader threads may read ahead of the consumer.
+	 */
+	public void setReadAhead(int readAhead) {
+		this.readAhead = Math.max(1, readAhead);
+	}
+
+	private static void logThroughput(int numPairs, long numChars, long nanos) {
+		double megabytes = numChars / 1e6;
+		double seconds = Math.max(nanos, 1) / 1e9;
+		Logger.logss("Read %d sentence pairs (%.1f MB) in %.2f s: %.1f MB/s", numPairs, megabytes, seconds, megabytes / seconds);
+	}
+
 	public Iterable<SentencePair> newPairReader(final String englishFile, final String foreignFile, final String alignFile, final String enTreeFile) {
 		return new Iterable<SentencePair>()
 		{
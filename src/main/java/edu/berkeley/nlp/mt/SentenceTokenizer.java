@@ -0,0 +1,175 @@
+package edu.berkeley.nlp.mt;
+
+import java.util.List;
+
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Splits a sentence line into words by scanning its characters, without
+ * regular expressions. Lines may be wrapped in SGML-style sentence markup,
+ * as in
+ *
+ * <pre>
+ * &lt;s snum=0001&gt; word word word &lt;/s&gt;
+ * </pre>
+ *
+ * in which case the markup is dropped and the snum becomes the sentence ID.
+ *
+ * Words are looked up in a vocabulary (StringIndexer), so the tokenizer can
+ * emit either the vocabulary's unique String instances or the word IDs.
+ *
+ * Several tokenizers running on different threads can share one vocabulary
+ * for their String instances: each then looks words up in a local
+ * vocabulary first, and only takes the lock on the shared one for words it
+ * has not seen before.
+ *
+ * Not thread-safe.
+ */
+public class SentenceTokenizer
+{
+	private final StringIndexer vocabulary;
+
+	private final StringIndexer sharedVocabulary;
+
+	// Canonical (shared) instances of the words of the local vocabulary
+	private String[] sharedWords;
+
+	private int sentenceID;
+
+	private int[] idBuffer = new int[64];
+
+	public SentenceTokenizer(StringIndexer vocabulary) {
+		this(vocabulary, null);
+	}
+
+	/**
+	 * @param sharedVocabulary
+	 *            A vocabulary shared with other threads, which tokenize()
+	 *            takes its String instances from. Access to it is
+	 *            synchronized on the vocabulary.
+	 */
+	public SentenceTokenizer(StringIndexer vocabulary, StringIndexer sharedVocabulary) {
+		this.vocabulary = vocabulary;
+		this.sharedVocabulary = sharedVocabulary;
+		if (sharedVocabulary != null) sharedWords = new String[1024];
+	}
+
+	public StringIndexer getVocabulary() {
+		return vocabulary;
+	}
+
+	/**
+	 * @return The snum of the last tokenized line, or -1 if it had none.
+	 */
+	public int getSentenceID() {
+		return sentenceID;
+	}
+
+	/**
+	 * Appends the words of the line to words.
+	 */
+	public void tokenize(String line, List<String> words) {
+		sentenceID = -1;
+		int length = line.length();
+		int i = 0;
+		while (true) {
+			while (i < length && isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == length) break;
+			int start = i;
+			while (i < length && !isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (isMarkup(line, start, i)) continue;
+			int id = vocabulary.indexOf(line, start, i);
+			words.add(sharedVocabulary == null ? vocabulary.get(id) : sharedWord(id));
+		}
+	}
+
+	private String sharedWord(int id) {
+		if (id >= sharedWords.length) {
+			String[] newSharedWords = new String[Math.max(id + 1, sharedWords.length * 2)];
+			System.arraycopy(sharedWords, 0, newSharedWords, 0, sharedWords.length);
+			sharedWords = newSharedWords;
+		}
+		String word = sharedWords[id];
+		if (word == null) {
+			synchronized (sharedVocabulary) {
+				word = sharedVocabulary.get(sharedVocabulary.indexOf(vocabulary.get(id)));
+			}
+			sharedWords[id] = word;
+		}
+		return word;
+	}
+
+	/**
+	 * Returns the vocabulary IDs of the words of the line.
+	 */
+	public int[] tokenizeIds(String line) {
+		sentenceID = -1;
+		int numWords = 0;
+		int length = line.length();
+		int i = 0;
+		while (true) {
+			while (i < length && isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == length) break;
+			int start = i;
+			while (i < length && !isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (isMarkup(line, start, i)) continue;
+			if (numWords == idBuffer.length) {
+				int[] newBuffer = new int[idBuffer.length * 2];
+				System.arraycopy(idBuffer, 0, newBuffer, 0, numWords);
+				idBuffer = newBuffer;
+			}
+			idBuffer[numWords++] = vocabulary.indexOf(line, start, i);
+		}
+		int[] ids = new int[numWords];
+		System.arraycopy(idBuffer, 0, ids, 0, numWords);
+		return ids;
+	}
+
+	/**
+	 * Recognizes the tokens "&lt;s", "snum=NNNN&gt;" and "&lt;/s&gt;". Sets
+	 * the sentence ID when it sees an snum.
+	 */
+	private boolean isMarkup(String line, int start, int end) {
+		if (!isMarkupToken(line, start, end)) return false;
+		if (line.charAt(start) == 's') {
+			// snum=NNNN>, the last character is dropped
+			sentenceID = parseInt(line, start + 5, end - 1);
+		}
+		return true;
+	}
+
+	static boolean isMarkupToken(String line, int start, int end) {
+		if (line.charAt(start) != '<' && line.charAt(start) != 's') return false;
+		int length = end - start;
+		if (length == 2 && line.startsWith("<s", start)) return true;
+		if (length == 4 && line.startsWith("</s>", start)) return true;
+		return length > 5 && line.startsWith("snum=", start);
+	}
+
+	private static int parseInt(String s, int start, int end) {
+		if (start >= end) throw new NumberFormatException("Empty sentence number in " + s);
+		boolean negative = s.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9) throw new NumberFormatException("Bad sentence number in " + s);
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	// The characters of the \s regular expression class
+	static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+	}
+
+}
@@ -30,6 +30,14 @@ public class Filters
 		return new CategoricalFilter<T>(true);
 	}
 
+	/**
+	 * Returns whether the filter is known to accept everything, in which case
+	 * callers can skip items without looking at them.
+	 */
+	public static boolean acceptsAll(Filter<?> filter) {
+		return filter instanceof CategoricalFilter && ((CategoricalFilter<?>) filter).judgment;
+	}
+
 	private static final class CategoricalFilter<T> implements Filter<T>
 	{
 
@@ -0,0 +1,124 @@
+package edu.berkeley.nlp.util;
+
+import java.util.Arrays;
+
+/**
+ * A table of unique strings with dense integer IDs. Strings are looked up by
+ * a character range of a larger string, so looking up a word that is already
+ * in the table allocates nothing. Used by tokenizers as a local replacement
+ * for String.intern(), which contends on the JVM-wide string table.
+ *
+ * Not thread-safe.
+ */
+public class StringIndexer
+{
+	private static final int NONE = -1;
+
+	private String[] strings;
+
+	private int[] hashes;
+
+	// Open-addressing table of IDs, NONE for empty slots
+	private int[] slots;
+
+	private int size;
+
+	public StringIndexer() {
+		this(1024);
+	}
+
+	public StringIndexer(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		strings = new String[capacity / 2];
+		hashes = new int[capacity / 2];
+		slots = new int[capacity];
+		Arrays.fill(slots, NONE);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String get(int id) {
+		return strings[id];
+	}
+
+	public int indexOf(String s) {
+		return indexOf(s, 0, s.length());
+	}
+
+	/**
+	 * Returns the ID of the string s.substring(start, end), adding it to the
+	 * table if it is not there yet.
+	 */
+	public int indexOf(String s, int start, int end) {
+		int hash = hash(s, start, end);
+		int mask = slots.length - 1;
+		int slot = mix(hash) & mask;
+		int length = end - start;
+		while (true) {
+			int id = slots[slot];
+			if (id == NONE) break;
+			if (hashes[id] == hash) {
+				String candidate = strings[id];
+				if (candidate.length() == length && s.regionMatches(start, candidate, 0, length)) return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		// Not found: add it
+		if (size == strings.length) {
+			grow();
+			return indexOf(s, start, end);
+		}
+		int id = size++;
+		strings[id] = (start == 0 && end == s.length()) ? s : s.substring(start, end);
+		hashes[id] = hash;
+		slots[slot] = id;
+		return id;
+	}
+
+	/**
+	 * Returns the unique instance of s.substring(start, end).
+	 */
+	public String canonical(String s, int start, int end) {
+		return strings[indexOf(s, start, end)];
+	}
+
+	private void grow() {
+		String[] oldStrings = strings;
+		int[] oldHashes = hashes;
+		strings = new String[oldStrings.length * 2];
+		hashes = new int[oldHashes.length * 2];
+		System.arraycopy(oldStrings, 0, strings, 0, size);
+		System.arraycopy(oldHashes, 0, hashes, 0, size);
+		slots = new int[slots.length * 2];
+		Arrays.fill(slots, NONE);
+		int mask = slots.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = mix(hashes[id]) & mask;
+			while (slots[slot] != NONE) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = id;
+		}
+	}
+
+	// Same as String.hashCode() of the substring
+	private static int hash(String s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h;
+	}
+
+	private static int mix(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+}
@@ -0,0 +1,34 @@
+package edu.berkeley.cs.amplab.aligner
+
+
+/**
+ * Optional aligner settings. Like Spark's own settings, these are read from
+ * Java system properties (-Daligner.xxx=...), so they can be passed through
+ * SPARK_JAVA_OPTS or conf/java-opts without changing the drivers' arguments.
+ *
+ * @author rxin
+ */
+object AlignerConf {
+
+  def get(key: String, default: String): String = {
+    System.getProperty(key, default)
+  }
+
+  def getInt(key: String, default: Int): Int = {
+    get(key, default.toString).toInt
+  }
+
+  def getDouble(key: String, default: Double): Double = {
+    get(key, default.toString).toDouble
+  }
+
+  def getBoolean(key: String, default: Boolean): Boolean = {
+    get(key, default.toString).toBoolean
+  }
+
+  /**
+   * The probability of aligning a French word to NULL, shared by all the
+   * trainers and the default of EMConfig.
+   */
+  def nullLikelihood: Double = getDouble("aligner.nullLikelihood", 0.20)
+}
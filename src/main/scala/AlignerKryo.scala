@@ -0,0 +1,368 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.io.{ByteArrayOutputStream, ObjectOutputStream}
+import java.nio.ByteBuffer
+import java.util.Arrays
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.{ArrayBuffer, HashSet}
+
+import com.esotericsoftware.kryo.{Kryo, Serializer}
+
+import edu.berkeley.nlp.mt.SentencePair
+import spark.KryoRegistrator
+
+
+/**
+ * Registers compact Kryo serializers for the aligner's types, so that the
+ * tables broadcast and shuffled in every iteration are not Java-serialized
+ * as HashMaps of boxed values. Enable it with
+ *
+ *   -Dspark.serialization=spark.KryoSerialization
+ *   -Dspark.kryo.registrator=edu.berkeley.cs.amplab.aligner.AlignerKryoRegistrator
+ *
+ * Kryo serializes every object into a buffer of spark.kryoserializer.buffer.mb
+ * megabytes, which must hold the largest of them: a broadcast table of a
+ * large corpus needs it raised well above the default.
+ *
+ * Counts are written as doubles, or as floats if aligner.table.precision is
+ * below double (see TablePrecision), which halves their size at the cost of
+ * precision. Every serialized
+ * Counter records which it used, so readers need not be configured alike.
+ *
+ * @author rxin
+ */
+class AlignerKryoRegistrator extends KryoRegistrator {
+  def registerClasses(kryo: Kryo) {
+    AlignerKryoRegistrator.register(kryo, TablePrecision.fromConf() != TablePrecision.DOUBLE)
+  }
+}
+
+
+object AlignerKryoRegistrator {
+
+  def register(kryo: Kryo, useFloats: Boolean) {
+    val counterSerializer = new CounterSerializer(useFloats)
+    kryo.register(classOf[Counter], counterSerializer)
+    kryo.register(classOf[CounterMap], new CounterMapSerializer(counterSerializer))
+    kryo.register(classOf[SimpleSentencePair], new SimpleSentencePairSerializer)
+    kryo.register(classOf[SentenceBucket], new SentenceBucketSerializer)
+    kryo.register(classOf[CompactTranslationTable], new CompactTranslationTableSerializer)
+    // Covers every mutable.HashSet: the only ones the aligner serializes
+    // are AlignerX's sets of seeds, which hold ints.
+    kryo.register(classOf[HashSet[_]], new IntHashSetSerializer)
+    kryo.register(classOf[Array[SimpleSentencePair]])
+    kryo.register(classOf[Array[SentenceBucket]])
+  }
+}
+
+
+/**
+ * Variable-length integer coding: 7 bits per byte, low bits first, with the
+ * high bit set on all but the last byte. Signed values are zigzag coded so
+ * that small negative numbers stay short.
+ */
+object VarInt {
+
+  def put(buffer: ByteBuffer, value: Int) {
+    var v = value
+    while ((v & ~0x7f) != 0) {
+      buffer.put(((v & 0x7f) | 0x80).toByte)
+      v >>>= 7
+    }
+    buffer.put(v.toByte)
+  }
+
+  def get(buffer: ByteBuffer): Int = {
+    var value = 0
+    var shift = 0
+    var b = buffer.get()
+    while ((b & 0x80) != 0) {
+      value |= (b & 0x7f) << shift
+      shift += 7
+      b = buffer.get()
+    }
+    value | (b << shift)
+  }
+
+  def putSigned(buffer: ByteBuffer, value: Int) {
+    put(buffer, (value << 1) ^ (value >> 31))
+  }
+
+  def getSigned(buffer: ByteBuffer): Int = {
+    val v = get(buffer)
+    (v >>> 1) ^ -(v & 1)
+  }
+}
+
+
+/**
+ * Writes a Counter as its size and its keys in ascending order, each coded
+ * as the varint difference to the previous key, followed by the counts.
+ */
+class CounterSerializer(val useFloats: Boolean) extends Serializer {
+
+  def writeObjectData(buffer: ByteBuffer, obj: AnyRef) {
+    val counter = obj.asInstanceOf[Counter]
+    val keys = counter.keys.toArray
+    Arrays.sort(keys)
+    buffer.put(if (useFloats) 1.toByte else 0.toByte)
+    VarInt.put(buffer, keys.length)
+    var previous = 0
+    keys.foreach { key =>
+      VarInt.putSigned(buffer, key - previous)
+      previous = key
+    }
+    keys.foreach { key =>
+      val count = counter(key)
+      if (useFloats) buffer.putFloat(count.toFloat) else buffer.putDouble(count)
+    }
+  }
+
+  override def readObjectData[T](buffer: ByteBuffer, cls: Class[T]): T = {
+    val floats = buffer.get() == 1
+    val size = VarInt.get(buffer)
+    val keys = new Array[Int](size)
+    var previous = 0
+    var i = 0
+    while (i < size) {
+      previous += VarInt.getSigned(buffer)
+      keys(i) = previous
+      i += 1
+    }
+    val counter = new Counter
+    i = 0
+    while (i < size) {
+      counter.put(keys(i), if (floats) buffer.getFloat().toDouble else buffer.getDouble())
+      i += 1
+    }
+    counter.asInstanceOf[T]
+  }
+}
+
+
+/**
+ * Writes a CounterMap as its rows in ascending key order, with delta-coded
+ * keys.
+ */
+class CounterMapSerializer(val counterSerializer: CounterSerializer) extends Serializer {
+
+  def writeObjectData(buffer: ByteBuffer, obj: AnyRef) {
+    val counterMap = obj.asInstanceOf[CounterMap]
+    val keys = counterMap.keys.toArray
+    Arrays.sort(keys)
+    VarInt.put(buffer, keys.length)
+    var previous = 0
+    keys.foreach { key =>
+      VarInt.putSigned(buffer, key - previous)
+      previous = key
+      counterSerializer.writeObjectData(buffer, counterMap(key))
+    }
+  }
+
+  override def readObjectData[T](buffer: ByteBuffer, cls: Class[T]): T = {
+    val counterMap = new CounterMap
+    val size = VarInt.get(buffer)
+    var previous = 0
+    for (i <- 0 until size) {
+      previous += VarInt.getSigned(buffer)
+      counterMap.put(previous, counterSerializer.readObjectData(buffer, classOf[Counter]))
+    }
+    counterMap.asInstanceOf[T]
+  }
+}
+
+
+class SimpleSentencePairSerializer extends Serializer {
+
+  def writeObjectData(buffer: ByteBuffer, obj: AnyRef) {
+    val pair = obj.asInstanceOf[SimpleSentencePair]
+    VarInt.put(buffer, pair.englishWords.size)
+    pair.englishWords.foreach(VarInt.put(buffer, _))
+    VarInt.put(buffer, pair.frenchWords.size)
+    pair.frenchWords.foreach(VarInt.put(buffer, _))
+    VarInt.put(buffer, pair.count)
+  }
+
+  override def readObjectData[T](buffer: ByteBuffer, cls: Class[T]): T = {
+    val englishWords = new ArrayBuffer[Int]
+    for (i <- 0 until VarInt.get(buffer)) englishWords += VarInt.get(buffer)
+    val frenchWords = new ArrayBuffer[Int]
+    for (i <- 0 until VarInt.get(buffer)) frenchWords += VarInt.get(buffer)
+    new SimpleSentencePair(englishWords, frenchWords, VarInt.get(buffer)).asInstanceOf[T]
+  }
+}
+
+
+class SentenceBucketSerializer extends Serializer {
+
+  private def putInts(buffer: ByteBuffer, values: Array[Int]) {
+    VarInt.put(buffer, values.length)
+    values.foreach(VarInt.put(buffer, _))
+  }
+
+  private def getInts(buffer: ByteBuffer): Array[Int] = {
+    val values = new Array[Int](VarInt.get(buffer))
+    for (i <- 0 until values.length) values(i) = VarInt.get(buffer)
+    values
+  }
+
+  def writeObjectData(buffer: ByteBuffer, obj: AnyRef) {
+    val bucket = obj.asInstanceOf[SentenceBucket]
+    putInts(buffer, bucket.english)
+    putInts(buffer, bucket.englishStarts)
+    putInts(buffer, bucket.french)
+    putInts(buffer, bucket.frenchStarts)
+    putInts(buffer, bucket.counts)
+    VarInt.put(buffer, bucket.maxEnglishLength)
+    VarInt.put(buffer, bucket.maxFrenchLength)
+  }
+
+  override def readObjectData[T](buffer: ByteBuffer, cls: Class[T]): T = {
+    new SentenceBucket(getInts(buffer), getInts(buffer), getInts(buffer),
+      getInts(buffer), getInts(buffer), VarInt.get(buffer), VarInt.get(buffer)).asInstanceOf[T]
+  }
+}
+
+
+/**
+ * Writes a CompactTranslationTable at its own precision, with the English
+ * words and the French words of each row delta-coded.
+ */
+class CompactTranslationTableSerializer extends Serializer {
+
+  def writeObjectData(buffer: ByteBuffer, obj: AnyRef) {
+    val table = obj.asInstanceOf[CompactTranslationTable]
+    buffer.put(table.precision.id.toByte)
+    VarInt.put(buffer, table.numRows)
+    VarInt.put(buffer, table.numEntries)
+    var previous = 0
+    for (row <- 0 until table.numRows) {
+      VarInt.putSigned(buffer, table.englishIds(row) - previous)
+      previous = table.englishIds(row)
+      VarInt.put(buffer, table.rowStarts(row + 1) - table.rowStarts(row))
+      var previousFrench = 0
+      for (i <- table.rowStarts(row) until table.rowStarts(row + 1)) {
+        VarInt.putSigned(buffer, table.frenchIds(i) - previousFrench)
+        previousFrench = table.frenchIds(i)
+      }
+    }
+    if (table.doubles != null) table.doubles.foreach(buffer.putDouble(_))
+    if (table.floats != null) table.floats.foreach(buffer.putFloat(_))
+    if (table.shorts != null) table.shorts.foreach(buffer.putShort(_))
+    if (table.bytes != null) buffer.put(table.bytes)
+    if (table.scales != null) table.scales.foreach(buffer.putFloat(_))
+  }
+
+  override def readObjectData[T](buffer: ByteBuffer, cls: Class[T]): T = {
+    val precision = TablePrecision(buffer.get())
+    val numRows = VarInt.get(buffer)
+    val numEntries = VarInt.get(buffer)
+    val englishIds = new Array[Int](numRows)
+    val rowStarts = new Array[Int](numRows + 1)
+    val frenchIds = new Array[Int](numEntries)
+    var previous = 0
+    for (row <- 0 until numRows) {
+      previous += VarInt.getSigned(buffer)
+      englishIds(row) = previous
+      rowStarts(row + 1) = rowStarts(row) + VarInt.get(buffer)
+      var previousFrench = 0
+      for (i <- rowStarts(row) until rowStarts(row + 1)) {
+        previousFrench += VarInt.getSigned(buffer)
+        frenchIds(i) = previousFrench
+      }
+    }
+
+    import TablePrecision._
+    val doubles = if (precision == DOUBLE) Array.fill(numEntries)(buffer.getDouble()) else null
+    val floats = if (precision == FLOAT) Array.fill(numEntries)(buffer.getFloat()) else null
+    val shorts = if (precision == LOG16) Array.fill(numEntries)(buffer.getShort()) else null
+    val bytes = if (precision == LOG8) new Array[Byte](numEntries) else null
+    if (bytes != null) buffer.get(bytes)
+    val scales =
+      if (precision == LOG16 || precision == LOG8) Array.fill(numRows)(buffer.getFloat())
+      else null
+    new CompactTranslationTable(precision, englishIds, rowStarts, frenchIds,
+      doubles, floats, shorts, bytes, scales).asInstanceOf[T]
+  }
+}
+
+
+/**
+ * Writes a HashSet of ints, such as AlignerX's sets of split seeds. It is
+ * registered for all mutable.HashSets, so it rejects sets of anything else
+ * rather than corrupting them.
+ */
+class IntHashSetSerializer extends Serializer {
+
+  def writeObjectData(buffer: ByteBuffer, obj: AnyRef) {
+    val set = obj.asInstanceOf[HashSet[Any]]
+    VarInt.put(buffer, set.size)
+    set.foreach {
+      case value: Int => VarInt.putSigned(buffer, value)
+      case value => throw new IllegalArgumentException(
+        "IntHashSetSerializer cannot write a HashSet holding " + value.asInstanceOf[AnyRef].getClass)
+    }
+  }
+
+  override def readObjectData[T](buffer: ByteBuffer, cls: Class[T]): T = {
+    val set = new HashSet[Int]
+    for (i <- 0 until VarInt.get(buffer)) set += VarInt.getSigned(buffer)
+    set.asInstanceOf[T]
+  }
+}
+
+
+/**
+ * Compares Java serialization with the Kryo serializers (with doubles and
+ * with floats) on what the trainers send every iteration: the whole
+ * translation table, as broadcast by Model1AlignerSpark, and its rows one
+ * by one, as shuffled by Model1AlignerX.
+ *
+ * Usage: SerializationBenchmark <training data path> <max pairs> [buffer MB]
+ */
+object SerializationBenchmark extends Application {
+
+  override def main(args: Array[String]) {
+    val bufferSize = (if (args.length > 2) args(2).toInt else 256) << 20
+    val aligner = new AlignerSingleThread
+    aligner.init(SentencePair.readSentencePairs(args(0), args(1).toInt))
+    val table = aligner.alignProb
+    val rows = table.toSeq.map(row => (row._1, CounterMap(row)))
+    println(table.size + " rows, " + table.values.map(_.size).sum + " entries")
+
+    def javaSerialize(objs: Seq[AnyRef]): Long = {
+      val bytes = new ByteArrayOutputStream
+      val out = new ObjectOutputStream(bytes)
+      objs.foreach { obj => out.writeObject(obj) ; out.reset() }
+      out.close()
+      bytes.size
+    }
+
+    def kryoSerialize(objs: Seq[AnyRef], useFloats: Boolean): Long = {
+      val kryo = new Kryo
+      AlignerKryoRegistrator.register(kryo, useFloats)
+      val buffer = ByteBuffer.allocate(bufferSize)
+      objs.foreach(kryo.writeClassAndObject(buffer, _))
+      // Check that everything reads back.
+      buffer.flip()
+      objs.foreach { obj => kryo.readClassAndObject(buffer) }
+      buffer.limit
+    }
+
+    def measure(name: String, serialize: => Long) {
+      serialize  // warm up
+      val startTime = System.nanoTime
+      val bytes = serialize
+      println("%-28s %12d bytes %8.1f ms".format(name, bytes,
+        (System.nanoTime - startTime) / 1e6))
+    }
+
+    measure("broadcast, Java", javaSerialize(Seq(table)))
+    measure("broadcast, Kryo doubles", kryoSerialize(Seq(table), false))
+    measure("broadcast, Kryo floats", kryoSerialize(Seq(table), true))
+    measure("shuffle rows, Java", javaSerialize(rows))
+    measure("shuffle rows, Kryo doubles", kryoSerialize(rows, false))
+    measure("shuffle rows, Kryo floats", kryoSerialize(rows, true))
+  }
+}
@@ -9,11 +9,13 @@
 package edu.berkeley.cs.amplab.aligner
 
 import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
 
 import java.io.File
 import java.lang.{Iterable => JavaIterable}
 
 import edu.berkeley.nlp.mt.{Alignment, SentencePair}
+import edu.berkeley.nlp.util.Filters
 
 
 /**
@@ -24,13 +26,45 @@ import edu.berkeley.nlp.mt.{Alignment, SentencePair}
 object AlignerSingleThreadDriver extends Application {
 
   override def main(args: Array[String]) {
-    run(args(0).toInt)
+    // args(0) = num of training sentence pairs
+    // args(1) = (optional) sure threshold for posterior decoding
+    // args(2) = (optional) possible threshold for posterior decoding
+    val sureThreshold = if (args.length > 1) args(1).toDouble else 0.0
+    val possibleThreshold = if (args.length > 2) args(2).toDouble else sureThreshold
+    if (possibleThreshold > sureThreshold) {
+      throw new IllegalArgumentException("The possible threshold " + possibleThreshold +
+        " must not be above the sure threshold " + sureThreshold)
+    }
+    run(args(0).toInt, sureThreshold = sureThreshold,
+      possibleThreshold = possibleThreshold)
   }
 
-  def run(maxTrain: Int, printAlign: Boolean = true, path:String = "./data/") {
+  def run(maxTrain: Int, printAlign: Boolean = true, path:String = "./data/",
+    sureThreshold: Double = 0.0, possibleThreshold: Double = 0.0) {
+    // In online mode the training data is streamed from disk on every pass
+    // instead of being cached in memory.
+    val online = AlignerConf.getBoolean("aligner.online", false)
+
+    // Pairs rejected by the corpus filters are dropped before tokenizing.
+    val corpusFilter = CorpusFilter.fromConf()
+    val trainingFilter =
+      if (corpusFilter == null) Filters.acceptFilter[SentencePair]() else corpusFilter
+
     val trainingSentencePairs: JavaIterable[SentencePair] =
-      SentencePair.readSentencePairs(
-        new File(path, "training").getPath(), maxTrain)
+      if (online) {
+        SentencePair.streamSentencePairs(
+          new File(path, "training").getPath(), maxTrain, trainingFilter)
+      } else {
+        SentencePair.readSentencePairs(
+          new File(path, "training").getPath(), maxTrain, trainingFilter)
+      }
+    if (corpusFilter != null && !online) corpusFilter.logRejections()
+
+    // Repeated pairs are trained on once, weighted by their count.
+    val dedupe = AlignerConf.getBoolean("aligner.dedupe", false) && !online
+    val concatSentencePairs: JavaIterable[SentencePair] =
+      if (dedupe) SentencePair.deduplicate(trainingSentencePairs)
+      else trainingSentencePairs
 
     val testSentencePairs: JavaIterable[SentencePair] =
       SentencePair.readSentencePairs(path + "/test_aligns_big",
@@ -38,12 +72,64 @@ object AlignerSingleThreadDriver extends Application {
     val testAlignments = Alignment.readAlignments(
       path + "/test_aligns_big/test.wa")
 
-    val concatSentencePairs: JavaIterable[SentencePair] = trainingSentencePairs
-
     // Init aligner.
+    // Incremental mode warm-starts from a saved translation table and the
+    // expected counts of the data it was trained on. The table can also be a
+    // snapshot (aligner.save.snapshot), which is mapped instead of parsed.
+    val warmStartTable = AlignerConf.get("aligner.warmStart.table", null)
+    val warmStartSnapshot = AlignerConf.get("aligner.warmStart.snapshot", null)
+    if (warmStartTable != null && warmStartSnapshot != null) {
+      throw new IllegalArgumentException(
+        "Set at most one of aligner.warmStart.table and aligner.warmStart.snapshot")
+    }
+    val warmStartStats = AlignerConf.get("aligner.warmStart.stats", null)
+    val saveTable = AlignerConf.get("aligner.save.table", null)
+    val saveStats = AlignerConf.get("aligner.save.stats", null)
+
     val wordAligner = new AlignerSingleThread()
-    wordAligner.init(trainingSentencePairs)
-    wordAligner.train(trainingSentencePairs)
+    wordAligner.keepSufficientStats = (saveStats != null)
+    wordAligner.checkpointer = Checkpointer.fromConf("AlignerSingleThread",
+      new File(path).getAbsolutePath, maxTrain.toString,
+      if (warmStartTable != null) warmStartTable
+      else if (warmStartSnapshot != null) warmStartSnapshot
+      else "")
+    if (online) {
+      wordAligner.trainOnline(trainingSentencePairs)
+    } else if (warmStartTable != null || warmStartSnapshot != null) {
+      val numIterations = AlignerConf.getInt("aligner.incremental.iterations", 3)
+      val trainedTable =
+        if (warmStartTable != null) {
+          TranslationTableIO.read(warmStartTable)
+        } else {
+          val snapshot = OffHeapTable.readSnapshot(warmStartSnapshot)
+          val table = snapshot.toCounterMap
+          snapshot.release()
+          table
+        }
+      if (!wordAligner.resume(numIterations)) {
+        wordAligner.initIncremental(concatSentencePairs, trainedTable)
+      }
+      wordAligner.train(concatSentencePairs, numIterations,
+        TranslationTableIO.readOrNull(warmStartStats))
+      IncrementalTraining.keepMissingRows(trainedTable, wordAligner.alignProb)
+    } else {
+      if (!wordAligner.resume()) wordAligner.init(concatSentencePairs)
+      wordAligner.train(concatSentencePairs)
+    }
+
+    if (wordAligner.checkpointer != null) wordAligner.checkpointer.finish()
+    if (corpusFilter != null && online) corpusFilter.logRejections()
+    if (saveTable != null) TranslationTableIO.write(wordAligner.alignProb, saveTable)
+    val saveSnapshot = AlignerConf.get("aligner.save.snapshot", null)
+    if (saveSnapshot != null) {
+      val snapshotTable =
+        if (wordAligner.offHeapTable != null) wordAligner.offHeapTable
+        else OffHeapTable(wordAligner.alignProb)
+      snapshotTable.writeSnapshot(saveSnapshot)
+    }
+    if (saveStats != null && wordAligner.sufficientStats != null) {
+      TranslationTableIO.write(wordAligner.sufficientStats, saveStats)
+    }
 
     // Test alignment.
     var proposedSureCount = 0;
@@ -51,10 +137,19 @@ object AlignerSingleThreadDriver extends Application {
     var sureCount = 0;
     var proposedCount = 0;
 
-    // Align the sentences.
-    testSentencePairs.foreach { sentencePair =>
-      val proposedAlignment: Alignment = wordAligner.alignSentencePair(
-        sentencePair);
+    // Align the sentences, with posterior decoding if thresholds are given
+    // and Viterbi decoding otherwise.
+    val testSentencePairSeq = testSentencePairs.toList
+    val proposedAlignments: Seq[Alignment] =
+      if (sureThreshold > 0) {
+        new PosteriorDecoder(wordAligner.alignProb, wordAligner.NULL_LIKELIHOOD, sureThreshold,
+          possibleThreshold).alignSentencePairs(testSentencePairSeq)
+      } else {
+        testSentencePairSeq.map { wordAligner.alignSentencePair(_) }
+      }
+
+    (testSentencePairSeq zip proposedAlignments).foreach {
+      case(sentencePair, proposedAlignment) =>
       val referenceAlignment: Alignment = testAlignments.get(
         sentencePair.getSentenceID());
       
@@ -63,7 +158,9 @@ object AlignerSingleThreadDriver extends Application {
 
       sentencePair.getFrenchWords.zipWithIndex.foreach { case(fw, fi) =>
         sentencePair.getEnglishWords.zipWithIndex.foreach { case(ew, ei) =>
-          val proposed = proposedAlignment.containsSureAlignment(ei, fi)
+          // Possible links include the sure ones, so this counts every
+          // proposed link, whichever threshold it passed.
+          val proposed = proposedAlignment.containsPossibleAlignment(ei, fi)
           val sure = referenceAlignment.containsSureAlignment(ei, fi)
           val possible = referenceAlignment.containsPossibleAlignment(ei, fi)
           if (proposed && sure) proposedSureCount += 1
@@ -95,12 +192,66 @@ class AlignerSingleThread {
 
   val NUM_EM_ITERATIONS = 20
 
-  val NULL_LIKELIHOOD = 0.20
+  val NULL_LIKELIHOOD = AlignerConf.nullLikelihood
 
   val NON_NULL_LIKELIHOOD = (1 - NULL_LIKELIHOOD)
 
   var alignProb = new CounterMap
 
+  /**
+   * If set, train() keeps the unnormalized expected counts of its last
+   * iteration in sufficientStats, for later incremental training.
+   */
+  var keepSufficientStats = false
+
+  var sufficientStats: CounterMap = null
+
+  /** Saves the table every few iterations, if set. */
+  var checkpointer: Checkpointer = null
+
+  /** The number of EM iterations already run, e.g. before a restart. */
+  var completedIterations = 0
+
+  /**
+   * If set, train() reorganizes the loaded corpus into length buckets (see
+   * LengthBuckets) and runs the E step over their flat arrays. That E step
+   * aligns to NULL once per French word instead of to the NULLs appended to
+   * the sentences. The buckets are a second copy of the corpus, held for all
+   * of train() alongside the caller's pairs, which init() and the caller
+   * still use. They take 4 bytes per word, a small fraction of what the
+   * word strings of the pairs take.
+   */
+  var bucketed = AlignerConf.getBoolean("aligner.bucketed", false)
+
+  /**
+   * If set, train() accumulates the expected counts, and keeps the table it
+   * trains, in an OffHeapTable outside the Java heap, so that garbage
+   * collections need not scan it. alignProb is only filled in at the end of
+   * train(), for the decoders.
+   */
+  var offHeap = AlignerConf.getBoolean("aligner.offHeap", false)
+
+  /** The table trained by train() in off-heap mode. */
+  var offHeapTable: OffHeapTable = null
+
+  /**
+   * If more than one, train() runs the E step on this many threads, which
+   * all add to one ConcurrentCountTable (see ConcurrentEStep). The pairs are
+   * loaded into flat arrays first. Like the bucketed E step, the threaded one
+   * aligns to NULL once per French word, with distortion over the English
+   * words plus one, instead of to the NULLs appended to the sentences, so
+   * its tables differ from those of the single-threaded list E step. Not
+   * used in off-heap mode; takes precedence over aligner.spill.budgetMB in
+   * the E step, since its counts are shared.
+   */
+  var numThreads = ConcurrentEStep.NUM_THREADS
+
+  /**
+   * The table trained by train() with a threaded E step: the shared counts,
+   * normalized in place. alignProb is only filled in at the end of train().
+   */
+  var concurrentTable: ConcurrentCountTable = null
+
   /**
    * Generate the initial word pair counts (translation probability). This
    * function sets the initial translation probability to
@@ -114,6 +265,8 @@ class AlignerSingleThread {
    */  
   def init(trainingData: JavaIterable[SentencePair]) {
 
+    val counts: CountTable = if (SpillingCountTable.ENABLED) new SpillingCountTable else alignProb
+
     trainingData.zipWithIndex.foreach { case(sentencePair, sentenceIndex) => {
       // Run the init alignment.
       // Append 0 for NULL alignment.
@@ -121,26 +274,114 @@ class AlignerSingleThread {
       sentencePair.englishWords.foreach( e => {
         sentencePair.frenchWords.foreach( f => {
           // TODO toInt is slow.
-          alignProb.incrementCount(e.toInt, f.toInt, 1)
+          counts.incrementCount(e.toInt, f.toInt, sentencePair.getCount)
         })
       })
     }}
 
-    alignProb.normalize()
+    counts match {
+      case spilled: SpillingCountTable => {
+        if (offHeap) offHeapTable = spilled.normalizeInto(new OffHeapTable)
+        else alignProb = spilled.normalizeInto(new CounterMap)
+      }
+      case _ => alignProb.normalize()
+    }
   }
 
   /**
-   * Train the aligner. This must be called before using alignSentencePair().
+   * Resumes from the latest checkpoint, if checkpointing is on and there is
+   * one of fewer than numIterations iterations. Returns true if it did, in
+   * which case init() must be skipped.
    */
-  def train(trainingData: JavaIterable[SentencePair]) {
-    // EM iterations.
-    for (emIteration <- 1 to NUM_EM_ITERATIONS) {
-      println("EM iteration # " + emIteration + " / " + NUM_EM_ITERATIONS)
+  def resume(numIterations: Int = NUM_EM_ITERATIONS): Boolean = {
+    if (checkpointer == null) return false
+    checkpointer.latest() match {
+      case Some((iteration, table)) if iteration >= numIterations => {
+        println("Ignoring the checkpoint of iteration " + iteration + " of a run of " +
+          numIterations + " iterations")
+        false
+      }
+      case Some((iteration, table)) => {
+        println("Resuming from the checkpoint of iteration " + iteration)
+        alignProb = table
+        completedIterations = iteration
+        true
+      }
+      case None => false
+    }
+  }
+
+  /**
+   * Initializes the aligner for incremental training: the initial table of
+   * the new data is folded into a previously trained table. Replaces init().
+   */
+  def initIncremental(
+    trainingData: JavaIterable[SentencePair],
+    trainedTable: CounterMap) {
+    init(trainingData)
+    if (offHeapTable != null) {
+      alignProb = offHeapTable.toCounterMap
+      offHeapTable.release()
+      offHeapTable = null
+    }
+    alignProb = IncrementalTraining.extend(trainedTable, alignProb)
+  }
 
-      val newAlignProb = new CounterMap
+  /**
+   * Train the aligner. This must be called before using alignSentencePair().
+   * If priorCounts is given (the expected counts of previously seen data),
+   * it is added to the expected counts in every M step.
+   */
+  def train(
+    trainingData: JavaIterable[SentencePair],
+    numIterations: Int = NUM_EM_ITERATIONS,
+    priorCounts: CounterMap = null) {
+    val threaded = numThreads > 1 && !offHeap
+    if (threaded) {
+      println("Running the E step on " + numThreads +
+        " threads, aligning to NULL once per French word")
+      if (SpillingCountTable.ENABLED) {
+        println("Ignoring aligner.spill.budgetMB in the E step, which runs on " +
+          numThreads + " threads")
+      }
+    }
+    val buckets =
+      if (threaded) {
+        ConcurrentEStep.chunks(trainingData.iterator.map(SimpleSentencePair.fromSentencePair))
+      } else if (bucketed) {
+        LengthBuckets.bucketize(trainingData.iterator.map(SimpleSentencePair.fromSentencePair))
+      } else {
+        null
+      }
+    // The E step only counts pairs that are in the table, so the slots of
+    // the first table serve every iteration.
+    var slotIndex: SlotIndex = null
 
-      // E step: align words using alignProb.
-      trainingData.foreach { sentencePair => {
+    // EM iterations.
+    for (emIteration <- completedIterations + 1 to numIterations) {
+      println("EM iteration # " + emIteration + " / " + numIterations)
+      val gcStartMillis = OffHeapTable.gcMillis
+
+      val table: TranslationProbs =
+        if (offHeapTable != null) offHeapTable
+        else if (concurrentTable != null) concurrentTable
+        else alignProb
+      if (threaded && slotIndex == null) slotIndex = SlotIndex(alignProb)
+      val newAlignProb: CountTable =
+        if (threaded) new ConcurrentCountTable(slotIndex)
+        else if (SpillingCountTable.ENABLED) new SpillingCountTable
+        else if (!offHeap) new CounterMap
+        else if (offHeapTable != null) new OffHeapTable(offHeapTable.size)
+        else new OffHeapTable(alignProb.values.map(_.size).sum)
+
+      // E step: align words using alignProb. The expected counts of a
+      // deduplicated pair are weighted by its count.
+      if (threaded) {
+        ConcurrentEStep.addExpectedCounts(buckets, table, NULL_LIKELIHOOD, newAlignProb, numThreads)
+      } else if (buckets != null) {
+        LengthBuckets.addExpectedCounts(buckets, table, NULL_LIKELIHOOD, newAlignProb)
+      } else trainingData.foreach { sentencePair => {
+        val count = sentencePair.getCount
 
         // Append 0 for NULL alignment.
         sentencePair.englishWords.append("0")
@@ -153,9 +394,9 @@ class AlignerSingleThread {
           // the alignDist array.
           val alignDist = sentencePair.englishWords.map { e =>
             if (e.toInt == 0) {
-              (alignProb.getCount(e.toInt, f.toInt) * NULL_LIKELIHOOD)
+              (table.getCount(e.toInt, f.toInt) * NULL_LIKELIHOOD)
             } else {
-              (alignProb.getCount(e.toInt, f.toInt) * NON_NULL_LIKELIHOOD
+              (table.getCount(e.toInt, f.toInt) * NON_NULL_LIKELIHOOD
                   / (sentencePair.englishWords.size + 1))
             }
           }
@@ -164,18 +405,116 @@ class AlignerSingleThread {
 
           // Increment the normalized alignment count.
           (sentencePair.englishWords zip alignDist).foreach { case(e, p) =>
-            newAlignProb.incrementCount(e.toInt, f.toInt, p / alignDistSum)
+            newAlignProb.incrementCount(e.toInt, f.toInt, count * p / alignDistSum)
           }
         }}
       }}
 
       // M step: update alignProb based on the alignment.
-      newAlignProb.normalize()
-      alignProb = newAlignProb
+      newAlignProb match {
+        case counts: CounterMap => {
+          if (priorCounts != null) counts.mergeWith(priorCounts)
+          if (keepSufficientStats && emIteration == numIterations) {
+            sufficientStats = counts.copy
+          }
+          counts.normalize()
+          alignProb = counts
+        }
+        case counts: OffHeapTable => {
+          if (priorCounts != null) counts.mergeWith(priorCounts)
+          if (keepSufficientStats && emIteration == numIterations) {
+            sufficientStats = counts.toCounterMap
+          }
+          counts.normalize()
+          if (offHeapTable != null) offHeapTable.release()
+          offHeapTable = counts
+          alignProb = new CounterMap
+        }
+        case counts: ConcurrentCountTable => {
+          if (priorCounts != null) counts.mergeWith(priorCounts)
+          if (keepSufficientStats && emIteration == numIterations) {
+            sufficientStats = counts.toCounterMap
+          }
+          counts.normalize()
+          concurrentTable = counts
+          alignProb = new CounterMap
+        }
+        case counts: SpillingCountTable => {
+          if (priorCounts != null) counts.mergeWith(priorCounts)
+          val stats = if (keepSufficientStats && emIteration == numIterations) new CounterMap else null
+          if (counts.numRuns > 0) println("Merging " + counts.numRuns + " spilled runs")
+          if (offHeap) {
+            val newTable = counts.normalizeInto(new OffHeapTable(
+              if (offHeapTable != null) offHeapTable.size else alignProb.values.map(_.size).sum), stats)
+            if (offHeapTable != null) offHeapTable.release()
+            offHeapTable = newTable
+            alignProb = new CounterMap
+          } else {
+            alignProb = counts.normalizeInto(new CounterMap, stats)
+          }
+          if (stats != null) sufficientStats = stats
+        }
+      }
+      completedIterations = emIteration
+
+      if (checkpointer != null && checkpointer.shouldCheckpoint(emIteration)) {
+        checkpointer.maybeCheckpoint(emIteration,
+          if (offHeapTable != null) offHeapTable.toCounterMap
+          else if (concurrentTable != null) concurrentTable.toCounterMap
+          else alignProb)
+      }
+      println("EM iteration # " + emIteration + " spent " +
+        (OffHeapTable.gcMillis - gcStartMillis) + " ms in GC")
+    }
+
+    if (offHeapTable != null) alignProb = offHeapTable.toCounterMap
+    if (concurrentTable != null) {
+      alignProb = concurrentTable.toCounterMap
+      concurrentTable = null
+    }
+  }
+
+  /**
+   * Train the aligner with stepwise online EM. Sentence pairs are read in
+   * mini-batches and never held in memory all at once, so the training data
+   * can be a streaming (uncached) PairDepot. Replaces init() and train().
+   */
+  def trainOnline(
+    trainingData: JavaIterable[SentencePair],
+    batchSize: Int = AlignerConf.getInt("aligner.online.batchSize", 10000),
+    stepSizeDecay: Double = AlignerConf.getDouble("aligner.online.stepSizeDecay", 0.7),
+    numPasses: Int = AlignerConf.getInt("aligner.online.passes", 3)) {
+
+    val model = new StepwiseModel1(NULL_LIKELIHOOD, stepSizeDecay)
+    val batch = new ArrayBuffer[SimpleSentencePair]
+
+    for (pass <- 1 to numPasses) {
+      println("Online EM pass # " + pass + " / " + numPasses)
+
+      trainingData.foreach { sentencePair =>
+        batch += SimpleSentencePair.fromSentencePair(sentencePair)
+        if (batch.size == batchSize) {
+          model.step(batch.iterator)
+          batch.clear()
+        }
+      }
+      if (!batch.isEmpty) {
+        model.step(batch.iterator)
+        batch.clear()
+      }
     }
+
+    println("Online EM made " + model.numUpdates + " updates")
+    alignProb = model.translationTable
   }
 
   def alignSentencePair(sentencePair: SentencePair): Alignment = {
+    if (Model1Kernel.ENABLED) Model1Kernel.align(alignProb, NULL_LIKELIHOOD, sentencePair)
+    else alignSentencePairByLink(sentencePair)
+  }
+
+  /** Viterbi alignment with one table lookup per link. */
+  def alignSentencePairByLink(sentencePair: SentencePair): Alignment = {
     val alignment = new Alignment
 
     // For each French word, find the most likely alignment.
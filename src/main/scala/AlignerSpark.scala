@@ -14,7 +14,27 @@ import java.io.File
 import java.lang.{Iterable => JavaIterable}
 
 import edu.berkeley.nlp.mt.{Alignment, SentencePair}
-import spark.{RDD, SparkContext}
+import spark.{RDD, SparkContext, Split}
+import mesos._
+
+
+/**
+ * An RDD that exposes only some of the splits of its parent. Used to run a
+ * job over a subset of the corpus, e.g. one mini-batch of online EM.
+ */
+class SplitSubsetRDD[T: ClassManifest](prev: RDD[T], splitIndices: Seq[Int])
+extends RDD[T](prev.sparkContext) {
+
+  @transient val splits_ = splitIndices.map(prev.splits(_)).toArray
+
+  override def splits = splits_.asInstanceOf[Array[Split]]
+
+  override def preferredLocations(split: Split) = prev.preferredLocations(split)
+
+  override def iterator(split: Split) = prev.iterator(split)
+
+  override def taskStarted(split: Split, slot: SlaveOffer) = prev.taskStarted(split, slot)
+}
 
 
 /**
@@ -29,11 +49,21 @@ object AlignerSpark extends Application {
     // args(1) = num of training sentence pairs per node
     // args(2) = test data path
     // args(3) = training data path (HDFS)
-    run(args(0), args(1).toInt, args(2), args(3))
+    // args(4) = (optional) sure threshold for posterior decoding
+    // args(5) = (optional) possible threshold for posterior decoding
+    val sureThreshold = if (args.length > 4) args(4).toDouble else 0.0
+    val possibleThreshold = if (args.length > 5) args(5).toDouble else sureThreshold
+    if (possibleThreshold > sureThreshold) {
+      throw new IllegalArgumentException("The possible threshold " + possibleThreshold +
+        " must not be above the sure threshold " + sureThreshold)
+    }
+    run(args(0), args(1).toInt, args(2), args(3),
+      sureThreshold = sureThreshold, possibleThreshold = possibleThreshold)
   }
 
   def run(master: String, maxTrain: Int, testDataPath:String,
-    trainingDataPath:String, printAlign: Boolean = false) {
+    trainingDataPath:String, printAlign: Boolean = false,
+    sureThreshold: Double = 0.0, possibleThreshold: Double = 0.0) {
 
     val testSentencePairs: JavaIterable[SentencePair] =
       SentencePair.readSentencePairs(testDataPath + "/test_aligns_big",
@@ -41,19 +71,121 @@ object AlignerSpark extends Application {
     val testAlignments = Alignment.readAlignments(
       testDataPath+ "/test_aligns_big/test.wa")
 
+    // In online mode the training data is re-read from HDFS on every pass
+    // instead of being cached in memory.
+    val online = AlignerConf.getBoolean("aligner.online", false)
+
     // Init aligner and load training data from HDFS.
     val sc = new SparkContext(master, "aligner")
-    val trainingLines = sc.textFile(trainingDataPath).splitRdd.flatMap {
-      _.take(maxTrain)
-    }
-    val trainingSentencePairsRdd = trainingLines.map {
-      SimpleSentencePair.lineToSimpleSentencePair(_)
-    }.cache()
+    // Drop pairs rejected by the corpus filters before parsing them.
+    val corpusFilter = CorpusFilter.fromConf()
+    val rejectionCounters =
+      if (corpusFilter == null) null else new RejectionCounters(sc)
+    // A binary corpus (see BinaryCorpus) is loaded as int arrays, without
+    // parsing.
+    val binary = AlignerConf.getBoolean("aligner.input.binary", false)
+    val dedupe = AlignerConf.getBoolean("aligner.dedupe", false)
+    val balance = AlignerConf.getBoolean("aligner.balance", false)
+    // In bucketed mode, its blocks go straight into the length buckets the
+    // E step runs over, without becoming SimpleSentencePairs, unless a
+    // transformation of the pairs is configured.
+    val bucketed = AlignerConf.getBoolean("aligner.bucketed", false)
+    val bucketedBinary = binary && bucketed &&
+      !online && !dedupe && !balance
+    val trainingBuckets =
+      if (bucketedBinary) {
+        BinaryCorpus.buckets(sc, trainingDataPath, maxTrain,
+          if (corpusFilter == null) null
+          else CorpusFilter.acceptLengths(corpusFilter, rejectionCounters)).cache()
+      } else {
+        null
+      }
+    val parsedSentencePairs =
+      if (binary) {
+        val pairs = BinaryCorpus.sentencePairs(sc, trainingDataPath, maxTrain)
+        if (corpusFilter == null) pairs
+        else CorpusFilter.filterPairs(pairs, corpusFilter, rejectionCounters)
+      } else {
+        val trainingLines = sc.textFile(trainingDataPath).splitRdd.flatMap {
+          _.take(maxTrain)
+        }
+        val filteredLines =
+          if (corpusFilter == null) trainingLines
+          else CorpusFilter.filterLines(trainingLines, corpusFilter, rejectionCounters)
+        filteredLines.map {
+          SimpleSentencePair.lineToSimpleSentencePair(_)
+        }
+      }
+    // Repeated pairs are trained on once, weighted by their count.
+    val trainingSentencePairs =
+      if (dedupe) {
+        SimpleSentencePair.deduplicate(parsedSentencePairs)
+      } else {
+        parsedSentencePairs
+      }
+    // Splits of equal line counts can differ a lot in E-step work.
+    val balancedSentencePairs =
+      if (balance) {
+        WorkBalancer.balance(sc, trainingSentencePairs)
+      } else {
+        trainingSentencePairs
+      }
+    // cache() returns the cached RDD rather than marking this one. A
+    // balanced corpus comes back cached. In bucketed mode the cached copy of
+    // the corpus is its buckets (see Model1AlignerSpark.train()), so the
+    // pairs are not cached too: init() and the bucketing read them from the
+    // input, once each.
+    val trainingSentencePairsRdd =
+      if (online || balance || bucketed) balancedSentencePairs
+      else balancedSentencePairs.cache()
+
+    // Incremental mode warm-starts from a saved translation table and the
+    // expected counts of the data it was trained on.
+    val warmStartTable = AlignerConf.get("aligner.warmStart.table", null)
+    val warmStartStats = AlignerConf.get("aligner.warmStart.stats", null)
+    val saveTable = AlignerConf.get("aligner.save.table", null)
+    val saveStats = AlignerConf.get("aligner.save.stats", null)
+
     val wordAligner = new Model1AlignerSpark(sc)
+    wordAligner.keepSufficientStats = (saveStats != null)
+    wordAligner.checkpointer = Checkpointer.fromConf("AlignerSpark", trainingDataPath,
+      maxTrain.toString, if (warmStartTable == null) "" else warmStartTable)
 
     // Run the distributed aligner.
-    wordAligner.init(trainingSentencePairsRdd)
-    wordAligner.train(trainingSentencePairsRdd)
+    if (online) {
+      wordAligner.trainOnline(trainingSentencePairsRdd)
+    } else if (trainingBuckets != null && warmStartTable != null) {
+      val numIterations = AlignerConf.getInt("aligner.incremental.iterations", 3)
+      val trainedTable = TranslationTableIO.read(warmStartTable)
+      if (!wordAligner.resume(numIterations)) {
+        wordAligner.initIncrementalBuckets(trainingBuckets, trainedTable)
+      }
+      wordAligner.trainBuckets(trainingBuckets, numIterations,
+        TranslationTableIO.readOrNull(warmStartStats))
+      IncrementalTraining.keepMissingRows(trainedTable, wordAligner.alignProb)
+    } else if (trainingBuckets != null) {
+      if (!wordAligner.resume()) wordAligner.initBuckets(trainingBuckets)
+      wordAligner.trainBuckets(trainingBuckets)
+    } else if (warmStartTable != null) {
+      val numIterations = AlignerConf.getInt("aligner.incremental.iterations", 3)
+      val trainedTable = TranslationTableIO.read(warmStartTable)
+      if (!wordAligner.resume(numIterations)) {
+        wordAligner.initIncremental(trainingSentencePairsRdd, trainedTable)
+      }
+      wordAligner.train(trainingSentencePairsRdd, numIterations,
+        TranslationTableIO.readOrNull(warmStartStats))
+      IncrementalTraining.keepMissingRows(trainedTable, wordAligner.alignProb)
+    } else {
+      if (!wordAligner.resume()) wordAligner.init(trainingSentencePairsRdd)
+      wordAligner.train(trainingSentencePairsRdd)
+    }
+
+    if (wordAligner.checkpointer != null) wordAligner.checkpointer.finish()
+    if (rejectionCounters != null) rejectionCounters.report()
+    if (saveTable != null) TranslationTableIO.write(wordAligner.alignProb, saveTable)
+    if (saveStats != null && wordAligner.sufficientStats != null) {
+      TranslationTableIO.write(wordAligner.sufficientStats, saveStats)
+    }
 
     // Test alignment.
     var proposedSureCount = 0;
@@ -61,10 +193,19 @@ object AlignerSpark extends Application {
     var sureCount = 0;
     var proposedCount = 0;
 
-    // Align the sentences.
-    testSentencePairs.foreach { sentencePair =>
-      val proposedAlignment: Alignment = wordAligner.alignSentencePair(
-        sentencePair);
+    // Align the sentences, with posterior decoding if thresholds are given
+    // and Viterbi decoding otherwise.
+    val testSentencePairSeq = testSentencePairs.toList
+    val proposedAlignments: Seq[Alignment] =
+      if (sureThreshold > 0) {
+        new PosteriorDecoder(wordAligner.alignProb, wordAligner.NULL_LIKELIHOOD, sureThreshold,
+          possibleThreshold).alignSentencePairs(testSentencePairSeq)
+      } else {
+        testSentencePairSeq.map { wordAligner.alignSentencePair(_) }
+      }
+
+    (testSentencePairSeq zip proposedAlignments).foreach {
+      case(sentencePair, proposedAlignment) =>
       val referenceAlignment: Alignment = testAlignments.get(
         sentencePair.getSentenceID());
       
@@ -73,7 +214,9 @@ object AlignerSpark extends Application {
 
       sentencePair.getFrenchWords.zipWithIndex.foreach { case(fw, fi) =>
         sentencePair.getEnglishWords.zipWithIndex.foreach { case(ew, ei) =>
-          val proposed = proposedAlignment.containsSureAlignment(ei, fi)
+          // Possible links include the sure ones, so this counts every
+          // proposed link, whichever threshold it passed.
+          val proposed = proposedAlignment.containsPossibleAlignment(ei, fi)
           val sure = referenceAlignment.containsSureAlignment(ei, fi)
           val possible = referenceAlignment.containsPossibleAlignment(ei, fi)
           if (proposed && sure) proposedSureCount += 1
@@ -105,12 +248,40 @@ class Model1AlignerSpark(val sc: SparkContext) {
 
   val NUM_EM_ITERATIONS = 20
 
-  val NULL_LIKELIHOOD = 0.20
+  val NULL_LIKELIHOOD = AlignerConf.nullLikelihood
 
   val NON_NULL_LIKELIHOOD = (1 - NULL_LIKELIHOOD)
 
   var alignProb = new CounterMap
 
+  /**
+   * If set, train() keeps the unnormalized expected counts of its last
+   * iteration in sufficientStats, for later incremental training.
+   */
+  var keepSufficientStats = false
+
+  @transient var sufficientStats: CounterMap = null
+
+  /** Saves the table every few iterations, if set. */
+  @transient var checkpointer: Checkpointer = null
+
+  /** The number of EM iterations already run, e.g. before a restart. */
+  var completedIterations = 0
+
+  /**
+   * If set, train() reorganizes every split of the corpus into length
+   * buckets (see LengthBuckets) and runs the E step over their flat arrays,
+   * producing one table of counts per split. That E step aligns to NULL
+   * once per French word instead of to the NULLs appended to the sentences.
+   */
+  var bucketed = AlignerConf.getBoolean("aligner.bucketed", false)
+
+  /**
+   * The precision at which train() broadcasts the table to the E step (see
+   * TablePrecision). The expected counts are accumulated in doubles.
+   */
+  var tablePrecision = TablePrecision.fromConf()
+
   /**
    * Generate the initial word pair counts (translation probability). This
    * function sets the initial translation probability to
@@ -129,7 +300,7 @@ class Model1AlignerSpark(val sc: SparkContext) {
       sentencePair.englishWords += 0
       sentencePair.englishWords.foreach { e => {
         sentencePair.frenchWords.foreach { f => {
-          counterMap.incrementCount(e, f, 1)
+          counterMap.incrementCount(e, f, sentencePair.count)
         }}
       }}
 
@@ -140,18 +311,100 @@ class Model1AlignerSpark(val sc: SparkContext) {
     alignProb.normalize()
   }
 
+  /**
+   * Like init(), for a corpus whose splits are already in length buckets
+   * (see trainBuckets()).
+   */
+  def initBuckets(trainingData: RDD[Array[SentenceBucket]]) {
+
+    val counterMaps = trainingData.map { buckets =>
+      val counterMap = new CounterMap
+      buckets.foreach { bucket =>
+        for (s <- 0 until bucket.size) {
+          val count = bucket.counts(s)
+          for (j <- bucket.frenchStarts(s) until bucket.frenchStarts(s + 1)) {
+            val f = bucket.french(j)
+            for (i <- bucket.englishStarts(s) until bucket.englishStarts(s + 1)) {
+              counterMap.incrementCount(bucket.english(i), f, count)
+            }
+            // NULL co-occurs with every French word.
+            counterMap.incrementCount(0, f, count)
+          }
+        }
+      }
+      counterMap
+    }
+
+    alignProb = counterMaps.reduce(CounterMap.merge)
+    alignProb.normalize()
+  }
+
+  /**
+   * Resumes from the latest checkpoint, if checkpointing is on and there is
+   * one of fewer than numIterations iterations. Returns true if it did, in
+   * which case init() must be skipped.
+   */
+  def resume(numIterations: Int = NUM_EM_ITERATIONS): Boolean = {
+    if (checkpointer == null) return false
+    checkpointer.latest() match {
+      case Some((iteration, table)) if iteration >= numIterations => {
+        println("Ignoring the checkpoint of iteration " + iteration + " of a run of " +
+          numIterations + " iterations")
+        false
+      }
+      case Some((iteration, table)) => {
+        println("Resuming from the checkpoint of iteration " + iteration)
+        alignProb = table
+        completedIterations = iteration
+        true
+      }
+      case None => false
+    }
+  }
+
+  /**
+   * Initializes the aligner for incremental training: the initial table of
+   * the new data is folded into a previously trained table. Replaces init().
+   */
+  def initIncremental(
+    trainingData: RDD[SimpleSentencePair],
+    trainedTable: CounterMap) {
+    init(trainingData)
+    alignProb = IncrementalTraining.extend(trainedTable, alignProb)
+  }
+
+  /** Like initIncremental(), for a corpus in length buckets. */
+  def initIncrementalBuckets(
+    trainingData: RDD[Array[SentenceBucket]],
+    trainedTable: CounterMap) {
+    initBuckets(trainingData)
+    alignProb = IncrementalTraining.extend(trainedTable, alignProb)
+  }
+
   /**
    * Train the aligner. This must be called before using alignSentencePair().
+   * If priorCounts is given (the expected counts of previously seen data),
+   * it is added to the expected counts in every M step.
    */
-  def train(trainingData: RDD[SimpleSentencePair]) {
-    // EM iterations.
-    for (emIteration <- 1 to NUM_EM_ITERATIONS) {
-      println("EM iteration # " + emIteration + " / " + NUM_EM_ITERATIONS)
+  def train(
+    trainingData: RDD[SimpleSentencePair],
+    numIterations: Int = NUM_EM_ITERATIONS,
+    priorCounts: CounterMap = null) {
+    if (bucketed) {
+      // The length buckets of every split are built once and cached.
+      val bucketWidth = LengthBuckets.BUCKET_WIDTH
+      trainBuckets(trainingData.splitRdd.map { split =>
+        LengthBuckets.bucketize(split.iterator, bucketWidth)
+      }.cache(), numIterations, priorCounts)
+      return
+    }
 
-      val alignProbBroadcast = sc.broadcast[CounterMap](alignProb)
+    runEM(numIterations, priorCounts) { storedTable =>
+      val alignProbBroadcast = sc.broadcast[TranslationProbs](storedTable)
 
-      // E step: align words using alignProb.
-      val counterMaps = trainingData.map { sentencePair => {
+      // E step: align words using alignProb. The expected counts of a
+      // deduplicated pair are weighted by its count.
+      trainingData.map { sentencePair => {
 
         val counterMap = new CounterMap
 
@@ -175,19 +428,101 @@ class Model1AlignerSpark(val sc: SparkContext) {
           val alignDistSum = alignDist.sum
 
           (sentencePair.englishWords zip alignDist).foreach { case(e, p) =>
-            counterMap.incrementCount(e, f, p / alignDistSum)
+            counterMap.incrementCount(e, f, sentencePair.count * p / alignDistSum)
           }
         }}
 
         counterMap
       }}
+    }
+  }
+
+  /**
+   * Trains the aligner on a corpus whose splits are already in length
+   * buckets, such as BinaryCorpus.buckets() loads, with the E step of
+   * bucketed mode. Replaces train().
+   */
+  def trainBuckets(
+    trainingData: RDD[Array[SentenceBucket]],
+    numIterations: Int = NUM_EM_ITERATIONS,
+    priorCounts: CounterMap = null) {
+    runEM(numIterations, priorCounts) { storedTable =>
+      val alignProbBroadcast = sc.broadcast[TranslationProbs](storedTable)
+      val nullLikelihood = NULL_LIKELIHOOD
+      trainingData.map { buckets =>
+        LengthBuckets.expectedCounts(buckets, alignProbBroadcast.value, nullLikelihood)
+      }
+    }
+  }
+
+  /**
+   * Runs the EM iterations: every iteration passes the table, stored at
+   * tablePrecision, to eStep, and sums the expected counts it returns (one
+   * table per task) into the new table.
+   */
+  private def runEM(numIterations: Int, priorCounts: CounterMap)(
+    eStep: TranslationProbs => RDD[CounterMap]) {
+    val firstIteration = completedIterations + 1
+    for (emIteration <- firstIteration to numIterations) {
+      println("EM iteration # " + emIteration + " / " + numIterations)
+
+      val storedTable = TablePrecision.store(alignProb, tablePrecision)
+      storedTable match {
+        case compact: CompactTranslationTable if emIteration == firstIteration =>
+          println("Broadcasting the table at " + tablePrecision + " precision: " +
+            compact.sizeInBytes + " bytes, " +
+            CompactTranslationTable.sizeInBytes(alignProb, TablePrecision.DOUBLE) +
+            " at DOUBLE")
+        case _ =>
+      }
+      val counterMaps = eStep(storedTable)
 
       // M step: update alignProb.
       alignProb = counterMaps.reduce(CounterMap.merge)
+      if (priorCounts != null) alignProb.mergeWith(priorCounts)
+      if (keepSufficientStats && emIteration == numIterations) {
+        sufficientStats = alignProb.copy
+      }
       alignProb.normalize()
+      completedIterations = emIteration
+
+      if (checkpointer != null) checkpointer.maybeCheckpoint(emIteration, alignProb)
     }
   }
 
+  /**
+   * Train the aligner with stepwise online EM. Each mini-batch is a group of
+   * splits of the (uncached) training data: the executors compute expected
+   * counts for the batch against the broadcast model, and the driver folds
+   * them into the sufficient statistics before the next batch. Replaces
+   * init() and train().
+   */
+  def trainOnline(
+    trainingData: RDD[SimpleSentencePair],
+    splitsPerBatch: Int = AlignerConf.getInt("aligner.online.splitsPerBatch", 4),
+    stepSizeDecay: Double = AlignerConf.getDouble("aligner.online.stepSizeDecay", 0.7),
+    numPasses: Int = AlignerConf.getInt("aligner.online.passes", 3)) {
+
+    val model = new StepwiseModel1(NULL_LIKELIHOOD, stepSizeDecay)
+    val trainingSplits = trainingData.splitRdd
+    val batches = (0 until trainingSplits.splits.size).grouped(splitsPerBatch).toList
+
+    for (pass <- 1 to numPasses) {
+      println("Online EM pass # " + pass + " / " + numPasses)
+
+      batches.foreach { splitIndices =>
+        val modelBroadcast = sc.broadcast[StepwiseModel1](model)
+        val batchCounts = new SplitSubsetRDD(trainingSplits, splitIndices).map {
+          split => modelBroadcast.value.expectedCounts(split.iterator)
+        }.reduce(CounterMap.merge)
+        model.update(batchCounts)
+      }
+    }
+
+    println("Online EM made " + model.numUpdates + " updates")
+    alignProb = model.translationTable
+  }
+
   def alignSentencePair(sentencePair: SentencePair): Alignment = {
     val alignment = new Alignment
 
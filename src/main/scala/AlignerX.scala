@@ -10,7 +10,7 @@ package edu.berkeley.cs.amplab.aligner
 
 import scala.collection.JavaConversions._
 
-import java.io.File
+import java.io.{BufferedOutputStream, File, OutputStreamWriter, PrintWriter}
 import java.lang.{Iterable => JavaIterable}
 
 import edu.berkeley.nlp.mt.{Alignment, SentencePair}
@@ -18,6 +18,7 @@ import spark._
 import scala.collection.mutable.HashSet
 import scala.collection.mutable.HashMap
 import mesos._
+import org.apache.hadoop.fs.Path
 //import spark.{RDD, SparkContext}
 
 /*
@@ -77,6 +78,40 @@ extends RDD[(L, R)](left.sparkContext) {
   override def taskStarted(split: Split, slot: SlaveOffer) = left.taskStarted(split.asInstanceOf[ZipSplit].left, slot)
 }
 
+/**
+ * Zips each split of an IndexedRDD with the split of a parameter RDD that
+ * holds the same seed, without looking at either on the driver. The
+ * parameter RDD must come from reduceByKey() into as many splits as the
+ * IndexedRDD has, keyed by seed: the shuffle puts seed s into split
+ * s % numSplits, and IndexedRDD numbers its splits 1 to numSplits, so
+ * every parameter split holds exactly one seed and the pairing is known
+ * from the split indices alone. The tasks check that the seeds match.
+ */
+class SeedZippedRDD[L: ClassManifest, R: ClassManifest](
+  left: IndexedRDD[L], right: RDD[(Int, R)]
+)
+extends RDD[(L, R)](left.sparkContext) {
+  @transient val splits_ = left.splits.map { s =>
+    val seed = s.asInstanceOf[SeededSplit].seed
+    new ZipSplit(s, right.splits(seed % right.splits.size))
+  }
+  override def splits = splits_.asInstanceOf[Array[Split]]
+  override def preferredLocations(split: Split) = left.preferredLocations(split.asInstanceOf[ZipSplit].left)
+  override def iterator(splitIn: Split) = {
+    val split = splitIn.asInstanceOf[ZipSplit]
+    val seed = split.left.asInstanceOf[SeededSplit].seed
+    val rightValues = right.iterator(split.right).map { case(rightSeed, value) =>
+      if (rightSeed != seed) {
+        throw new IllegalStateException("Split " + split.getId() + " holds the parameters of seed " +
+          rightSeed + " instead of " + seed + "; the parameters are not partitioned by seed")
+      }
+      value
+    }
+    left.iterator(split.left).map(_._2).zip(rightValues)
+  }
+  override def taskStarted(split: Split, slot: SlaveOffer) = left.taskStarted(split.asInstanceOf[ZipSplit].left, slot)
+}
+
 /**
  * A scala driver for the aligner.
  *
@@ -89,11 +124,21 @@ object AlignerX extends Application {
     // args(1) = num of training sentence pairs per node
     // args(2) = test data path
     // args(3) = training data path (HDFS)
-    run(args(0), args(1).toInt, args(2), args(3))
+    // args(4) = (optional) sure threshold for posterior decoding
+    // args(5) = (optional) possible threshold for posterior decoding
+    val sureThreshold = if (args.length > 4) args(4).toDouble else 0.0
+    val possibleThreshold = if (args.length > 5) args(5).toDouble else sureThreshold
+    if (possibleThreshold > sureThreshold) {
+      throw new IllegalArgumentException("The possible threshold " + possibleThreshold +
+        " must not be above the sure threshold " + sureThreshold)
+    }
+    run(args(0), args(1).toInt, args(2), args(3),
+      sureThreshold = sureThreshold, possibleThreshold = possibleThreshold)
   }
 
   def run(master: String, maxTrain: Int, testDataPath:String,
-    trainingDataPath:String, printAlign: Boolean = false) {
+    trainingDataPath:String, printAlign: Boolean = false,
+    sureThreshold: Double = 0.0, possibleThreshold: Double = 0.0) {
 
     val testSentencePairs: JavaIterable[SentencePair] =
       SentencePair.readSentencePairs(testDataPath + "/test_aligns_big",
@@ -103,18 +148,79 @@ object AlignerX extends Application {
 
     // Init aligner and load training data from HDFS.
     val sc = new SparkContext(master, "aligner")
-    val trainingLines = sc.textFile(trainingDataPath).splitRdd.flatMap {
-      _.take(maxTrain)
-    }
-    val trainingSentencePairsRdd = trainingLines.map {
-      SimpleSentencePair.lineToSimpleSentencePair(_)
-    }.cache()
+    // Drop pairs rejected by the corpus filters before parsing them.
+    val corpusFilter = CorpusFilter.fromConf()
+    val rejectionCounters =
+      if (corpusFilter == null) null else new RejectionCounters(sc)
+    // A binary corpus (see BinaryCorpus) is loaded as int arrays, without
+    // parsing.
+    val parsedSentencePairs =
+      if (AlignerConf.getBoolean("aligner.input.binary", false)) {
+        val pairs = BinaryCorpus.sentencePairs(sc, trainingDataPath, maxTrain)
+        if (corpusFilter == null) pairs
+        else CorpusFilter.filterPairs(pairs, corpusFilter, rejectionCounters)
+      } else {
+        val trainingLines = sc.textFile(trainingDataPath).splitRdd.flatMap {
+          _.take(maxTrain)
+        }
+        val filteredLines =
+          if (corpusFilter == null) trainingLines
+          else CorpusFilter.filterLines(trainingLines, corpusFilter, rejectionCounters)
+        filteredLines.map {
+          SimpleSentencePair.lineToSimpleSentencePair(_)
+        }
+      }
+    // Repeated pairs are trained on once, weighted by their count.
+    val trainingSentencePairs =
+      if (AlignerConf.getBoolean("aligner.dedupe", false)) {
+        SimpleSentencePair.deduplicate(parsedSentencePairs)
+      } else {
+        parsedSentencePairs
+      }
+    // Splits of equal line counts can differ a lot in E-step work.
+    val trainingSentencePairsRdd =
+      if (AlignerConf.getBoolean("aligner.balance", false)) {
+        WorkBalancer.balance(sc, trainingSentencePairs)
+      } else {
+        trainingSentencePairs.cache()
+      }
     val wordAligner = new Model1AlignerX(sc)
 
-    // Run the distributed aligner.
-    var model = wordAligner.init(trainingSentencePairsRdd)
-    model = wordAligner.train(trainingSentencePairsRdd, model)
+    // Incremental mode warm-starts from a saved translation table and runs a
+    // few iterations over the new data only.
+    val warmStartTable = TranslationTableIO.readOrNull(
+      AlignerConf.get("aligner.warmStart.table", null))
+    val numIterations =
+      if (warmStartTable == null) wordAligner.NUM_EM_ITERATIONS
+      else AlignerConf.getInt("aligner.incremental.iterations", 3)
+
+    // Run the distributed aligner, resuming from a checkpoint if there is one.
+    wordAligner.checkpointer = Checkpointer.fromConf("AlignerX", trainingDataPath,
+      maxTrain.toString, AlignerConf.get("aligner.warmStart.table", ""))
+    wordAligner.lineageCheckpointer = Checkpointer.lineageFromConf(master, "AlignerX",
+      trainingDataPath, maxTrain.toString, AlignerConf.get("aligner.warmStart.table", ""))
+    var model = wordAligner.resume(numIterations)
+    if (model == null) model = wordAligner.init(trainingSentencePairsRdd, warmStartTable)
+    model = wordAligner.train(trainingSentencePairsRdd, model, numIterations)
     var finalModel:CounterMap = model.map(_._1).reduce(CounterMap.merge)
+    if (rejectionCounters != null) rejectionCounters.report()
+
+    // Rows of English words that do not occur in the new data are kept from
+    // the warm start table.
+    if (warmStartTable != null) IncrementalTraining.keepMissingRows(warmStartTable, finalModel)
+
+    val saveTable = AlignerConf.get("aligner.save.table", null)
+    if (saveTable != null) TranslationTableIO.write(finalModel, saveTable)
+
+    // Align the whole training corpus on the executors, if asked to. With
+    // dedupe on, every pair is aligned, not just one per distinct pair.
+    val alignOutput = AlignerConf.get("aligner.align.output", null)
+    if (alignOutput != null) wordAligner.alignCorpus(parsedSentencePairs, model, alignOutput)
+
+    // The model may still be read from the latest checkpoint, so it is only
+    // deleted once the model has been used.
+    if (wordAligner.checkpointer != null) wordAligner.checkpointer.finish()
+    if (wordAligner.lineageCheckpointer != null) wordAligner.lineageCheckpointer.finish()
 
     // Test alignment.
     var proposedSureCount = 0;
@@ -122,10 +228,19 @@ object AlignerX extends Application {
     var sureCount = 0;
     var proposedCount = 0;
 
-    // Align the sentences.
-    testSentencePairs.foreach { sentencePair =>
-      val proposedAlignment: Alignment = wordAligner.alignSentencePair(
-        sentencePair, finalModel);
+    // Align the sentences, with posterior decoding if thresholds are given
+    // and Viterbi decoding otherwise.
+    val testSentencePairSeq = testSentencePairs.toList
+    val proposedAlignments: Seq[Alignment] =
+      if (sureThreshold > 0) {
+        new PosteriorDecoder(finalModel, wordAligner.NULL_LIKELIHOOD, sureThreshold,
+          possibleThreshold).alignSentencePairs(testSentencePairSeq)
+      } else {
+        testSentencePairSeq.map { wordAligner.alignSentencePair(_, finalModel) }
+      }
+
+    (testSentencePairSeq zip proposedAlignments).foreach {
+      case(sentencePair, proposedAlignment) =>
       val referenceAlignment: Alignment = testAlignments.get(
         sentencePair.getSentenceID());
       
@@ -134,7 +249,9 @@ object AlignerX extends Application {
 
       sentencePair.getFrenchWords.zipWithIndex.foreach { case(fw, fi) =>
         sentencePair.getEnglishWords.zipWithIndex.foreach { case(ew, ei) =>
-          val proposed = proposedAlignment.containsSureAlignment(ei, fi)
+          // Possible links include the sure ones, so this counts every
+          // proposed link, whichever threshold it passed.
+          val proposed = proposedAlignment.containsPossibleAlignment(ei, fi)
           val sure = referenceAlignment.containsSureAlignment(ei, fi)
           val possible = referenceAlignment.containsPossibleAlignment(ei, fi)
           if (proposed && sure) proposedSureCount += 1
@@ -166,12 +283,152 @@ class Model1AlignerX(val sc: SparkContext) {
 
   val NUM_EM_ITERATIONS = 20
 
-  val NULL_LIKELIHOOD = 0.20
+  val NULL_LIKELIHOOD = AlignerConf.nullLikelihood
 
   val NON_NULL_LIKELIHOOD = (1 - NULL_LIKELIHOOD)
 
   //var alignProb:RDD[CounterMap] = new CounterMap
 
+  /**
+   * Saves the table every few iterations, if set. The checkpoint directory
+   * must be shared by all nodes, since the executors write the parts.
+   */
+  @transient var checkpointer: Checkpointer = null
+
+  /** The number of EM iterations already run, e.g. before a restart. */
+  var completedIterations = 0
+
+  /**
+   * If set, the lineage of the parameter RDD is cut every few iterations by
+   * writing it out and reading it back (see Checkpointer.lineageFromConf()).
+   * Otherwise it grows by a few RDDs every iteration, which makes recovering
+   * a lost partition and scheduling each iteration more and more expensive.
+   */
+  @transient var lineageCheckpointer: Checkpointer = null
+
+  /**
+   * If set, every iteration's parameters are computed as soon as the
+   * iteration is set up, and the time it took is logged. Otherwise the
+   * iterations only build RDDs, which are computed by later jobs. The
+   * parameters are cached, so computing them early costs one job per
+   * iteration and no recomputation.
+   */
+  val TIME_ITERATIONS = AlignerConf.getBoolean("aligner.timeIterations", false)
+
+  /**
+   * If set, the data and the parameters are zipped by ZippedRDD, which finds
+   * the seed of every split by computing it on the driver, instead of by
+   * SeedZippedRDD. Only for comparing the scheduling times of the two.
+   */
+  val ZIP_BY_SCANNING = AlignerConf.getBoolean("aligner.zip.scan", false)
+
+  /**
+   * A row of the table is hot if more than this fraction of all the expected
+   * counts of an iteration go into it. NULL, which is aligned in every
+   * sentence, always is, and function words like "the" usually are. Off by
+   * default (0): finding the hot rows costs a job over the corpus, and
+   * salting them a second shuffle every iteration, which pays off only when
+   * a few rows hold a large share of the counts, e.g. 0.01.
+   */
+  val HOT_ROW_FRACTION = AlignerConf.getDouble("aligner.skew.hotFraction", 0.0)
+
+  /** The number of reducers that the counts of a hot row are spread over. */
+  val HOT_ROW_SALTS = AlignerConf.getInt("aligner.skew.salts", 8)
+
+  /** The hot rows, found by findHotRows() when training starts. */
+  var hotRows: HashSet[Int] = null
+
+  /**
+   * Finds the hot rows from the co-occurrence statistics of the corpus: an
+   * English word e gets one expected count per French word of every sentence
+   * it occurs in, weighted by the sentence's count, so its share of the
+   * counts is the weighted sum of those sentences' French lengths over the
+   * weighted sum of all of them. NULL gets counts from every sentence, so it
+   * is always hot.
+   */
+  def findHotRows(trainingData: RDD[SimpleSentencePair]): HashSet[Int] = {
+    val hot = new HashSet[Int]
+    if (HOT_ROW_FRACTION <= 0) return hot
+    hot += 0
+    val rowLoads = new PairRDDExtras(trainingData.flatMap { sentencePair =>
+      val load = sentencePair.frenchWords.size.toLong * sentencePair.count
+      // Leave out any NULLs the pair has had appended.
+      sentencePair.englishWords.filter(_ != 0).distinct.map(e => (e, load))
+    }).reduceByKey(_ + _)
+    val totalLoad = trainingData.map { sentencePair =>
+      sentencePair.frenchWords.size.toLong * sentencePair.count
+    }.reduce(_ + _)
+    val threshold = HOT_ROW_FRACTION * totalLoad
+    hot ++= rowLoads.filter(_._2 > threshold).map(_._1).collect()
+    println("Hot rows, with more than " + HOT_ROW_FRACTION + " of the counts each: " +
+      hot.toSeq.sorted.mkString(" "))
+    hot
+  }
+
+  /**
+   * Sums the rows of expected counts by English word, as
+   * reduceByKey(merge) would. The counts of a hot row are first summed in
+   * HOT_ROW_SALTS parts, split by French word, on as many reducers, and the
+   * parts then put together, so that no reducer gets all of a hot row's
+   * counts. The parts are disjoint, so putting them together costs as much
+   * as the row's size rather than as the number of counts merged into it.
+   */
+  def reduceRows(rows: RDD[(Int, (CounterMap, HashSet[Int]))]): RDD[(Int, (CounterMap, HashSet[Int]))] = {
+    val merge = (x: (CounterMap, HashSet[Int]), y: (CounterMap, HashSet[Int])) =>
+      (CounterMap.merge(x._1, y._1), (x._2 ++ y._2)) // (CounterMap, seed/partition number)
+    if (hotRows == null || hotRows.isEmpty) {
+      return new PairRDDExtras(rows).reduceByKey(merge)
+    }
+
+    // Cold rows are keyed by (e, -1), and hot rows by (e, f % salts).
+    val hotRowsBroadcast = sc.broadcast[HashSet[Int]](hotRows)
+    val numSalts = HOT_ROW_SALTS
+    val saltedRows: RDD[((Int, Int), (CounterMap, HashSet[Int]))] = rows.flatMap { case(eWord, (cm, seeds)) =>
+      if (!hotRowsBroadcast.value.contains(eWord)) {
+        Seq(((eWord, -1), (cm, seeds)))
+      } else {
+        val parts = new Array[Counter](numSalts)
+        cm(eWord).foreach { case(f, count) =>
+          val salt = (f & Int.MaxValue) % numSalts
+          if (parts(salt) == null) parts(salt) = new Counter
+          parts(salt).put(f, count)
+        }
+        parts.zipWithIndex.filter(_._1 != null).map { case(part, salt) =>
+          ((eWord, salt), (CounterMap((eWord, part)), seeds))
+        }.toSeq
+      }
+    }
+    val partialRows = new PairRDDExtras(saltedRows).reduceByKey(merge)
+    val coldRows = partialRows.filter(_._1._2 < 0).map { case((eWord, salt), row) => (eWord, row) }
+    val hotRowParts = partialRows.filter(_._1._2 >= 0).map { case((eWord, salt), row) => (eWord, row) }
+    coldRows.union(new PairRDDExtras(hotRowParts).reduceByKey(merge))
+  }
+
+  /**
+   * Resumes from the latest checkpoint, if checkpointing is on and there is
+   * one of fewer than numIterations iterations. Returns the checkpointed
+   * table, or null if init() must be run.
+   */
+  def resume(numIterations: Int = NUM_EM_ITERATIONS): RDD[(CounterMap, HashSet[Int])] = {
+    if (checkpointer == null) return null
+    checkpointer.latestPartitioned(sc) match {
+      case Some((iteration, table)) if iteration >= numIterations => {
+        println("Ignoring the checkpoint of iteration " + iteration + " of a run of " +
+          numIterations + " iterations")
+        null
+      }
+      case Some((iteration, table)) => {
+        println("Resuming from the checkpoint of iteration " + iteration)
+        completedIterations = iteration
+        // Read the table now, while the checkpoint is still there.
+        val cachedTable = table.cache()
+        cachedTable.count()
+        cachedTable
+      }
+      case None => null
+    }
+  }
+
   /**
    * Generate the initial word pair counts (translation probability). This
    * function sets the initial translation probability to
@@ -182,15 +439,21 @@ class Model1AlignerX(val sc: SparkContext) {
    * first word in the sentence, which happen to be "the", and converge at
    * that local optimum (for non-convex) or make convergence slower (for
    * convex).
+   *
+   * If warmStartTable is given, the initial rows are folded into the rows of
+   * that (previously trained) table instead, for incremental training.
    */
-  def init(trainingData: RDD[SimpleSentencePair]): RDD[(CounterMap, HashSet[Int])] = {
+  def init(
+    trainingData: RDD[SimpleSentencePair],
+    warmStartTable: CounterMap = null
+  ): RDD[(CounterMap, HashSet[Int])] = {
 
     val counterMaps = trainingData.map { sentencePair => {
       val counterMap = new CounterMap
       sentencePair.englishWords += 0
       sentencePair.englishWords.foreach { e => {
         sentencePair.frenchWords.foreach { f => {
-          counterMap.incrementCount(e, f, 1)
+          counterMap.incrementCount(e, f, sentencePair.count)
         }}
       }}
 
@@ -204,13 +467,19 @@ class Model1AlignerX(val sc: SparkContext) {
        (p._2._2, HashSet(p._1)) // (CounterMap, seed/partition number)
       )
     )
-    val unnormAlignProb = new PairRDDExtras(unnormAlignProb1).reduceByKey((x, y) =>
-      (CounterMap.merge(x._1, y._1), (x._2 ++ y._2)) // (CounterMap, seed/partition number)
-    )
+    if (hotRows == null) hotRows = findHotRows(trainingData)
+    val unnormAlignProb = reduceRows(unnormAlignProb1)
+    val warmStartBroadcast =
+      if (warmStartTable == null) null else sc.broadcast[CounterMap](warmStartTable)
     val alignProb = unnormAlignProb.map(p => {
+      val eWord = p._1
       val cm = p._2._1
       val seeds = p._2._2
       cm.normalize
+      if (warmStartBroadcast != null) {
+        cm.put(eWord, IncrementalTraining.extendRow(
+          warmStartBroadcast.value.get(eWord).orNull, cm(eWord)))
+      }
       (cm, seeds)
     })
 
@@ -220,18 +489,34 @@ class Model1AlignerX(val sc: SparkContext) {
   /**
    * Train the aligner. This must be called before using alignSentencePair().
    */
-  def train(trainingData: RDD[SimpleSentencePair], alignProbIn: RDD[(CounterMap, HashSet[Int])]): RDD[(CounterMap, HashSet[Int])] = {
+  def train(trainingData: RDD[SimpleSentencePair], alignProbIn: RDD[(CounterMap, HashSet[Int])],
+    numIterations: Int = NUM_EM_ITERATIONS): RDD[(CounterMap, HashSet[Int])] = {
     // EM iterations.
     var alignProb = alignProbIn
+    if (hotRows == null) hotRows = findHotRows(trainingData)
 
-    for (emIteration <- 1 to NUM_EM_ITERATIONS) {
-      println("EM iteration # " + emIteration + " / " + NUM_EM_ITERATIONS)
+    for (emIteration <- completedIterations + 1 to numIterations) {
+      println("EM iteration # " + emIteration + " / " + numIterations)
+      val iterationStartTime = System.currentTimeMillis
 
       //val alignProbBroadcast = sc.broadcast[CounterMap](alignProb)
 
-      // E step: align words using alignProb.
-      val distParam: RDD[(Int, CounterMap)] = new PairRDDExtras(alignProb.flatMap(p => { val cm = p._1 ; val seeds = p._2 ; seeds.map((_, cm)) })).reduceByKey(CounterMap.merge)
-      val dataPlusParameters: RDD[(Array[SimpleSentencePair],CounterMap)] = new ZippedRDD(new IndexedRDD(trainingData.splitRdd), distParam)
+      // E step: align words using alignProb. The expected counts of a
+      // deduplicated pair are weighted by its count.
+      // The parameters are shuffled into one split per data split: the data
+      // split of seed s (numbered from 1) is zipped with the parameter split
+      // s % n, so seed n is in parameter split 0 (see SeedZippedRDD).
+      val zipStartTime = System.currentTimeMillis
+      val indexedData = new IndexedRDD(trainingData.splitRdd)
+      val distParam: RDD[(Int, CounterMap)] = new PairRDDExtras(alignProb.flatMap(p => { val cm = p._1 ; val seeds = p._2 ; seeds.map((_, cm)) })).reduceByKey(CounterMap.merge, indexedData.splits.size)
+      val dataPlusParameters: RDD[(Array[SimpleSentencePair],CounterMap)] =
+        if (ZIP_BY_SCANNING) new ZippedRDD(indexedData, distParam)
+        else new SeedZippedRDD(indexedData, distParam)
+      // This times building the zipped RDD on the driver, i.e. pairing the
+      // splits, which is all that differs between the two; the zip itself
+      // runs in the tasks of the E step.
+      println("Paired the splits of the data and the parameters in " +
+        (System.currentTimeMillis - zipStartTime) + " ms")
       val counterMaps = dataPlusParameters.flatMap { p => {
         val data: Array[SimpleSentencePair] = p._1 // data
         val prob: CounterMap = p._2 // parameters
@@ -260,7 +545,7 @@ class Model1AlignerX(val sc: SparkContext) {
             val alignDistSum = alignDist.sum
 
             (sentencePair.englishWords zip alignDist).foreach { case(e, p) =>
-              counterMap.incrementCount(e, f, p / alignDistSum)
+              counterMap.incrementCount(e, f, sentencePair.count * p / alignDistSum)
             }
           }}
 
@@ -277,20 +562,132 @@ class Model1AlignerX(val sc: SparkContext) {
          (p._2._2, HashSet(p._1)) // (CounterMap, seed/partition number)
         )
       )
-      val unnormAlignProb = new PairRDDExtras(unnormAlignProb1).reduceByKey((x, y) =>
-        (CounterMap.merge(x._1, y._1), (x._2 ++ y._2)) // (CounterMap, seed/partition number)
-      )
+      val unnormAlignProb = reduceRows(unnormAlignProb1)
       alignProb = unnormAlignProb.map(p => {
         val cm = p._2._1
         val seeds = p._2._2
         cm.normalize
         (cm, seeds)
       })
+      completedIterations = emIteration
+
+      // Cache every iteration's parameters, so that the next iteration and
+      // the checkpoints read them instead of recomputing the whole chain.
+      // This version of Spark cannot unpersist an RDD, so the parameters of
+      // earlier iterations are left to be evicted by the bounded cache.
+      alignProb = alignProb.cache()
+
+      // Checkpoints double as lineage truncation points: the table read back
+      // from the files has no lineage. It is computed right away, so that it
+      // no longer needs the files once the next checkpoint replaces them.
+      if (checkpointer != null && checkpointer.shouldCheckpoint(emIteration)) {
+        checkpointer.writePartitioned(emIteration, alignProb)
+        alignProb = checkpointer.readPartitioned(sc, emIteration).cache()
+        alignProb.count()
+      } else if (lineageCheckpointer != null &&
+                 lineageCheckpointer.shouldCheckpoint(emIteration)) {
+        lineageCheckpointer.writePartitioned(emIteration, alignProb)
+        alignProb = lineageCheckpointer.readPartitioned(sc, emIteration).cache()
+        alignProb.count()
+      }
+
+      if (TIME_ITERATIONS) {
+        alignProb.count()
+        println("EM iteration # " + emIteration + " took " +
+          (System.currentTimeMillis - iterationStartTime) + " ms")
+      }
     }
 
     alignProb
   }
 
+  /**
+   * Viterbi-aligns every sentence pair of a corpus on the executors and
+   * writes the alignments in Pharaoh format, one line of "i-j" links
+   * (English position i, French position j) per pair, into the part file
+   * <outputDir>/part-<seed> of each split, in corpus order.
+   *
+   * The parameters are routed like in training: the rows of the model are
+   * matched by English word with the splits whose sentences contain that
+   * word, and each split gets exactly the rows it needs (and NULL's). The
+   * corpus need not be the one the model was trained on, e.g. it can be the
+   * corpus before deduplication. Neither the model nor the alignments pass
+   * through the driver.
+   */
+  def alignCorpus(
+    corpus: RDD[SimpleSentencePair],
+    model: RDD[(CounterMap, HashSet[Int])],
+    outputDir: String) {
+    val startTime = System.currentTimeMillis
+    val fs = Checkpointer.fileSystem(outputDir)
+    fs.mkdirs(new Path(outputDir))
+
+    // The splits are read twice, for the words they need and to align them,
+    // so they are cached.
+    val indexedCorpus = new IndexedRDD(corpus.splitRdd.cache())
+    // Both sides keyed by English word: (row or null, seeds that need it).
+    val neededRows: RDD[(Int, (CounterMap, HashSet[Int]))] = indexedCorpus.flatMap { case(seed, pairs) =>
+      val words = new HashSet[Int]
+      words += 0
+      pairs.foreach(words ++= _.englishWords)
+      words.toSeq.map(e => (e, (null: CounterMap, HashSet(seed))))
+    }
+    // The rows are copied out of the cached model, which must not change.
+    val modelRows: RDD[(Int, (CounterMap, HashSet[Int]))] = model.flatMap { case(cm, seeds) =>
+      cm.toSeq.map(row => (row._1, (CounterMap((row._1, row._2.copy)), new HashSet[Int])))
+    }
+    val routedRows = new PairRDDExtras(neededRows.union(modelRows)).reduceByKey((x, y) =>
+      (if (x._1 != null) x._1 else y._1, x._2 ++ y._2))
+    // CounterMap.merge adds into its first argument, so every seed gets its
+    // own copy of the row.
+    val splitTables: RDD[(Int, CounterMap)] = new PairRDDExtras(routedRows.flatMap { case(e, (cm, seeds)) =>
+      if (cm == null) Nil else seeds.toSeq.map(s => (s, CounterMap((e, cm(e).copy))))
+    }).reduceByKey(CounterMap.merge, indexedCorpus.splits.size)
+    // SeedZippedRDD passes on the values only, so every table carries its
+    // seed for the file name. map() keeps the splits of the shuffle.
+    val seededTables = splitTables.map { case(seed, table) => (seed, (seed, table)) }
+
+    val numAligned = sc.accumulator(0)
+    new SeedZippedRDD(indexedCorpus, seededTables).foreach { case(pairs, (seed, table)) =>
+      val path = new Path(outputDir, "part-%05d".format(seed))
+      val out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(
+        Checkpointer.fileSystem(outputDir).create(path, true), 1 << 16), "UTF-8"))
+      try {
+        pairs.foreach { pair => out.println(pharaohLinks(pair, table)) }
+      } finally {
+        out.close()
+      }
+      numAligned += pairs.size
+    }
+    println("Aligned " + numAligned.value + " sentence pairs into " + outputDir + " in " +
+      (System.currentTimeMillis - startTime) + " ms")
+  }
+
+  /**
+   * The Viterbi alignment of a pair as Pharaoh "i-j" links, as
+   * alignSentencePair() would align it. NULL links are left out.
+   */
+  def pharaohLinks(sentencePair: SimpleSentencePair, alignProb: CounterMap): String = {
+    val links = new StringBuilder
+    val englishWords = sentencePair.englishWords
+    sentencePair.frenchWords.zipWithIndex.foreach { case(f, fi) =>
+      var bestProb = alignProb.getCount(0, f) * NULL_LIKELIHOOD
+      var alignToEi = -1
+      englishWords.zipWithIndex.foreach { case(e, ei) =>
+        val prob = alignProb.getCount(e, f) * NON_NULL_LIKELIHOOD / (englishWords.size + 1)
+        if (prob > bestProb) {
+          bestProb = prob
+          alignToEi = ei
+        }
+      }
+      if (alignToEi != -1) {
+        if (links.length > 0) links.append(' ')
+        links.append(alignToEi).append('-').append(fi)
+      }
+    }
+    links.toString
+  }
+
   def alignSentencePair(
     sentencePair: SentencePair,
     alignProb: CounterMap
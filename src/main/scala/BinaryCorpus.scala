@@ -0,0 +1,305 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.io.{BufferedOutputStream, DataInputStream, DataOutputStream, EOFException,
+  InputStream, OutputStream}
+import java.nio.ByteBuffer
+import java.util.Random
+
+import scala.collection.mutable.ArrayBuffer
+import scala.io.Source
+
+import org.apache.hadoop.fs.{FSDataInputStream, Path}
+import org.apache.hadoop.io.LongWritable
+import org.apache.hadoop.mapred.{FileInputFormat, FileSplit, InputSplit, JobConf,
+  RecordReader, Reporter}
+
+import spark.{RDD, SparkContext}
+
+
+/**
+ * An integerized corpus in a splittable binary format, so that the Spark
+ * trainers load sentence pairs as int arrays instead of parsing text lines:
+ *
+ *   header: magic, version, 16-byte sync marker
+ *   blocks: sync marker, payload length, payload
+ *
+ * The payload of a block is a SentenceBucket, as big-endian ints: the
+ * number of pairs n, counts(n), englishStarts(n + 1), frenchStarts(n + 1),
+ * english, french. Pairs never span blocks, so a reader that starts in the
+ * middle of a file skips to the next sync marker and reads whole blocks from
+ * there, as Hadoop's SequenceFile does; a split reads every block whose
+ * sync marker starts inside it.
+ *
+ * @author rxin
+ */
+object BinaryCorpus {
+
+  val MAGIC = 0x4d314243  // "M1BC"
+
+  val VERSION = 1
+
+  val SYNC_BYTES = 16
+
+  val HEADER_BYTES = 8 + SYNC_BYTES
+
+  /** Blocks are closed once their payload reaches about this size. */
+  val BLOCK_BYTES = AlignerConf.getInt("aligner.binary.blockBytes", 1 << 18)
+
+  /**
+   * Writes sentence pairs in the binary format. Closes the stream.
+   */
+  def write(pairs: Iterator[SimpleSentencePair], stream: OutputStream) {
+    val out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))
+    try {
+      val sync = new Array[Byte](SYNC_BYTES)
+      new Random().nextBytes(sync)
+      out.writeInt(MAGIC)
+      out.writeInt(VERSION)
+      out.write(sync)
+
+      val block = new ArrayBuffer[SimpleSentencePair]
+      var blockInts = 0
+      pairs.foreach { pair =>
+        block += pair
+        blockInts += 3 + pair.englishWords.size + pair.frenchWords.size
+        if (4 * blockInts >= BLOCK_BYTES) {
+          writeBlock(LengthBuckets.toBucket(block), sync, out)
+          block.clear()
+          blockInts = 0
+        }
+      }
+      if (!block.isEmpty) writeBlock(LengthBuckets.toBucket(block), sync, out)
+    } finally {
+      out.close()
+    }
+  }
+
+  private def writeBlock(bucket: SentenceBucket, sync: Array[Byte], out: DataOutputStream) {
+    val numInts = 1 + bucket.counts.length + bucket.englishStarts.length +
+      bucket.frenchStarts.length + bucket.english.length + bucket.french.length
+    val payload = ByteBuffer.allocate(4 * numInts)
+    val ints = payload.asIntBuffer
+    ints.put(bucket.size)
+    ints.put(bucket.counts)
+    ints.put(bucket.englishStarts)
+    ints.put(bucket.frenchStarts)
+    ints.put(bucket.english)
+    ints.put(bucket.french)
+    out.write(sync)
+    out.writeInt(payload.capacity)
+    out.write(payload.array)
+  }
+
+  /** Decodes the payload of a block. */
+  def readBlock(payload: Array[Byte]): SentenceBucket = {
+    val ints = ByteBuffer.wrap(payload).asIntBuffer
+    val numPairs = ints.get()
+    val counts = new Array[Int](numPairs)
+    val englishStarts = new Array[Int](numPairs + 1)
+    val frenchStarts = new Array[Int](numPairs + 1)
+    ints.get(counts)
+    ints.get(englishStarts)
+    ints.get(frenchStarts)
+    val english = new Array[Int](englishStarts(numPairs))
+    val french = new Array[Int](frenchStarts(numPairs))
+    ints.get(english)
+    ints.get(french)
+    var maxEnglishLength = 0
+    var maxFrenchLength = 0
+    for (s <- 0 until numPairs) {
+      maxEnglishLength = math.max(maxEnglishLength, englishStarts(s + 1) - englishStarts(s))
+      maxFrenchLength = math.max(maxFrenchLength, frenchStarts(s + 1) - frenchStarts(s))
+    }
+    new SentenceBucket(english, englishStarts, french, frenchStarts, counts,
+      maxEnglishLength, maxFrenchLength)
+  }
+
+  /** The pairs of a block, as SimpleSentencePairs. */
+  def pairsOf(bucket: SentenceBucket): Iterator[SimpleSentencePair] = {
+    (0 until bucket.size).iterator.map { s =>
+      new SimpleSentencePair(
+        ArrayBuffer(bucket.english.slice(bucket.englishStarts(s), bucket.englishStarts(s + 1)): _*),
+        ArrayBuffer(bucket.french.slice(bucket.frenchStarts(s), bucket.frenchStarts(s + 1)): _*),
+        bucket.counts(s))
+    }
+  }
+
+  /** Loads the blocks of a binary corpus (a file, directory or glob). */
+  def blocks(sc: SparkContext, path: String): RDD[SentenceBucket] = {
+    // The record reader reuses its value object, so take the block out of it.
+    sc.hadoopFile[LongWritable, SentenceBlockValue, BinaryCorpusInputFormat](path).map(_._2.block)
+  }
+
+  /**
+   * Loads a binary corpus as the length buckets of every split (see
+   * LengthBuckets.bucketizeBlocks), for the bucketed E step. At most
+   * maxPerSplit pairs are read from each split, and of those only the ones
+   * whose lengths pass accept (if given) are kept. The pairs are never
+   * boxed into SimpleSentencePairs.
+   */
+  def buckets(sc: SparkContext, path: String, maxPerSplit: Int,
+    accept: (Int, Int) => Boolean = null): RDD[Array[SentenceBucket]] = {
+    val width = LengthBuckets.BUCKET_WIDTH
+    blocks(sc, path).splitRdd.map { splitBlocks =>
+      LengthBuckets.bucketizeBlocks(splitBlocks.iterator, maxPerSplit, width, accept)
+    }
+  }
+
+  /**
+   * Loads the sentence pairs of a binary corpus, at most maxPerSplit of them
+   * from each split.
+   */
+  def sentencePairs(sc: SparkContext, path: String, maxPerSplit: Int): RDD[SimpleSentencePair] = {
+    blocks(sc, path).splitRdd.flatMap { splitBlocks =>
+      splitBlocks.iterator.flatMap(pairsOf).take(maxPerSplit).toArray
+    }
+  }
+}
+
+
+/**
+ * The value of a BinaryCorpusRecordReader record: one block of pairs.
+ */
+class SentenceBlockValue {
+  var block: SentenceBucket = null
+}
+
+
+/**
+ * A Hadoop (mapred API) input format for binary corpora. Every record is one
+ * block of sentence pairs, keyed by its position in the file.
+ */
+class BinaryCorpusInputFormat extends FileInputFormat[LongWritable, SentenceBlockValue] {
+
+  override def getRecordReader(split: InputSplit, job: JobConf, reporter: Reporter)
+    : RecordReader[LongWritable, SentenceBlockValue] = {
+    reporter.setStatus(split.toString)
+    new BinaryCorpusRecordReader(split.asInstanceOf[FileSplit], job)
+  }
+}
+
+
+class BinaryCorpusRecordReader(split: FileSplit, job: JobConf)
+extends RecordReader[LongWritable, SentenceBlockValue] {
+
+  import BinaryCorpus._
+
+  private val path = split.getPath
+
+  private val in: FSDataInputStream = path.getFileSystem(job).open(path)
+
+  private val start = split.getStart
+
+  private val end = start + split.getLength
+
+  private val sync = new Array[Byte](SYNC_BYTES)
+
+  // The position of the next unread byte.
+  private var pos = 0L
+
+  private var done = false
+
+  init()
+
+  private def init() {
+    val data = new DataInputStream(in)
+    if (data.readInt() != MAGIC) throw new RuntimeException("Not a binary corpus: " + path)
+    if (data.readInt() != VERSION) throw new RuntimeException("Unsupported binary corpus version: " + path)
+    data.readFully(sync)
+    if (start <= HEADER_BYTES) {
+      pos = HEADER_BYTES
+    } else {
+      in.seek(start)
+      pos = start
+      done = !skipToSync()
+    }
+  }
+
+  // Advances to the start of the next sync marker; false if there is none
+  // before the end of the file.
+  private def skipToSync(): Boolean = {
+    val window = new Array[Byte](SYNC_BYTES)
+    var filled = 0
+    var b = in.read()
+    while (b >= 0) {
+      // Shift the window left by one byte when it is full.
+      if (filled == SYNC_BYTES) {
+        System.arraycopy(window, 1, window, 0, SYNC_BYTES - 1)
+        filled -= 1
+      }
+      window(filled) = b.toByte
+      filled += 1
+      pos += 1
+      if (filled == SYNC_BYTES && java.util.Arrays.equals(window, sync)) {
+        // Step back so that next() reads the marker itself.
+        pos -= SYNC_BYTES
+        in.seek(pos)
+        return true
+      }
+      b = in.read()
+    }
+    false
+  }
+
+  def next(key: LongWritable, value: SentenceBlockValue): Boolean = {
+    if (done || pos >= end) return false
+    val data = new DataInputStream(in)
+    val marker = new Array[Byte](SYNC_BYTES)
+    try {
+      data.readFully(marker)
+    } catch {
+      case e: EOFException => { done = true ; return false }
+    }
+    if (!java.util.Arrays.equals(marker, sync)) {
+      throw new RuntimeException("Corrupt binary corpus " + path + ": no sync marker at " + pos)
+    }
+    val payload = new Array[Byte](data.readInt())
+    data.readFully(payload)
+    key.set(pos)
+    value.block = readBlock(payload)
+    pos += SYNC_BYTES + 4 + payload.length
+    true
+  }
+
+  def createKey() = new LongWritable
+
+  def createValue() = new SentenceBlockValue
+
+  def getPos() = pos
+
+  def getProgress(): Float = {
+    if (end == start) 1.0f
+    else math.min(1.0f, (pos - start).toFloat / (end - start))
+  }
+
+  def close() {
+    in.close()
+  }
+}
+
+
+/**
+ * Converts an integerized text corpus ("e1 e2 ... | f1 f2 ... [| count]"
+ * lines) into a binary corpus. Both paths go through the Hadoop FileSystem
+ * API, so either can be on a DFS.
+ *
+ * Usage: BinaryCorpusWriter <text corpus> <binary corpus>
+ */
+object BinaryCorpusWriter extends Application {
+
+  override def main(args: Array[String]) {
+    val inPath = new Path(args(0))
+    val outPath = new Path(args(1))
+    val in: InputStream = Checkpointer.fileSystem(args(0)).open(inPath)
+    var numPairs = 0
+    val pairs = Source.fromInputStream(in, "UTF-8").getLines()
+      .filter(_.trim.length > 0)
+      .map { line => numPairs += 1 ; SimpleSentencePair.lineToSimpleSentencePair(line) }
+    try {
+      BinaryCorpus.write(pairs, Checkpointer.fileSystem(args(1)).create(outPath, true))
+    } finally {
+      in.close()
+    }
+    println("Wrote " + numPairs + " sentence pairs to " + outPath)
+  }
+}
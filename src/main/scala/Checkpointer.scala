@@ -0,0 +1,327 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream,
+  DataOutputStream}
+import java.util.concurrent.{Executors, Future, ThreadFactory}
+
+import scala.collection.mutable.HashSet
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FileSystem, Path}
+
+import spark.{RDD, SparkContext}
+
+
+/**
+ * Periodically saves the translation table during training, so that a run
+ * that dies can resume from the latest checkpoint instead of restarting.
+ *
+ * A checkpoint of a driver-side table is a single file
+ *
+ *   <dir>/checkpoint-<iteration>
+ *
+ * holding the iteration number followed by the table in TranslationTableIO
+ * format. It is written on a background thread, so the next E step is not
+ * stalled; at most one write is in flight. The file is written under a
+ * temporary name and renamed when complete, so a crash mid-write never
+ * leaves a truncated checkpoint behind. Only the latest checkpoint is kept,
+ * and finish() deletes it once training has completed.
+ *
+ * A distributed table (AlignerX) is checkpointed as a directory with one
+ * part file per split, written by the executors. Files are accessed through
+ * the Hadoop FileSystem API, so dir can be a local path or a DFS URI; for
+ * partitioned checkpoints it has to be shared by all nodes.
+ *
+ * @author rxin
+ */
+class Checkpointer(val dir: String, val interval: Int) {
+
+  val CHECKPOINT_PREFIX = "checkpoint-"
+
+  val TMP_SUFFIX = ".tmp"
+
+  /**
+   * Written last into a partitioned checkpoint, to mark it complete. It holds
+   * the number of part files.
+   */
+  val DONE_FILE = "_done"
+
+  private lazy val writer = Executors.newSingleThreadExecutor(
+    new ThreadFactory {
+      def newThread(r: Runnable) = {
+        val thread = new Thread(r, "checkpoint-writer")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+
+  private var pending: Future[_] = null
+
+  private val dirPath = new Path(dir)
+
+  private val fs = Checkpointer.fileSystem(dir)
+
+  fs.mkdirs(dirPath)
+
+  def shouldCheckpoint(iteration: Int) = interval > 0 && iteration % interval == 0
+
+  def checkpointPath(iteration: Int) = {
+    new Path(dirPath, CHECKPOINT_PREFIX + "%04d".format(iteration))
+  }
+
+  /**
+   * Asynchronously checkpoints the table after the given iteration if it is
+   * due. The table must not be modified afterwards, which holds for the
+   * trainers since they build a new table in every iteration.
+   */
+  def maybeCheckpoint(iteration: Int, table: CounterMap) {
+    if (!shouldCheckpoint(iteration)) return
+    waitForPending()
+    pending = writer.submit(new Runnable {
+      def run() {
+        val startTime = System.currentTimeMillis
+        write(iteration, table)
+        println("Checkpointed iteration " + iteration + " in " +
+          (System.currentTimeMillis - startTime) + " ms")
+      }
+    })
+  }
+
+  def write(iteration: Int, table: CounterMap) {
+    val path = checkpointPath(iteration)
+    val tmpPath = new Path(path.toString + TMP_SUFFIX)
+    val out = new DataOutputStream(new BufferedOutputStream(fs.create(tmpPath), 1 << 16))
+    try {
+      out.writeInt(iteration)
+      TranslationTableIO.write(table, out)
+    } finally {
+      out.close()
+    }
+    fs.rename(tmpPath, path)
+    deleteOlderThan(iteration)
+  }
+
+  /**
+   * Returns the iteration and table of the latest complete checkpoint.
+   */
+  def latest(): Option[(Int, CounterMap)] = {
+    latestIteration(p => !fs.getFileStatus(p).isDir) map { iteration =>
+      val in = new DataInputStream(new BufferedInputStream(
+        fs.open(checkpointPath(iteration)), 1 << 16))
+      try {
+        val storedIteration = in.readInt()
+        (storedIteration, TranslationTableIO.read(in))
+      } finally {
+        in.close()
+      }
+    }
+  }
+
+  /**
+   * Checkpoints a distributed table if it is due. Unlike the driver-side
+   * maybeCheckpoint(), this runs synchronously since it is a job.
+   */
+  def maybeCheckpoint(iteration: Int, table: RDD[(CounterMap, HashSet[Int])]) {
+    if (shouldCheckpoint(iteration)) writePartitioned(iteration, table)
+  }
+
+  /**
+   * Writes a distributed table. Each split writes its rows into a part file
+   * from the executor it runs on; the driver never holds the table.
+   */
+  def writePartitioned(iteration: Int, table: RDD[(CounterMap, HashSet[Int])]) {
+    val startTime = System.currentTimeMillis
+    val path = checkpointPath(iteration)
+    fs.mkdirs(path)
+    val pathString = path.toString
+
+    new IndexedRDD(table.splitRdd).foreach { case(seed, rows) =>
+      Checkpointer.writePart(new Path(pathString, "part-%05d".format(seed)), rows)
+    }
+
+    val done = fs.create(new Path(path, DONE_FILE))
+    try {
+      done.writeInt(table.splits.size)
+    } finally {
+      done.close()
+    }
+    deleteOlderThan(iteration)
+    println("Checkpointed iteration " + iteration + " in " +
+      (System.currentTimeMillis - startTime) + " ms")
+  }
+
+  /**
+   * Returns the iteration and a distributed table read back from the latest
+   * complete partitioned checkpoint.
+   */
+  def latestPartitioned(sc: SparkContext): Option[(Int, RDD[(CounterMap, HashSet[Int])])] = {
+    latestIteration(p => fs.exists(new Path(p, DONE_FILE))) map { iteration =>
+      (iteration, readPartitioned(sc, iteration))
+    }
+  }
+
+  /**
+   * Reads a partitioned checkpoint back as an RDD with one split per part
+   * file. The RDD has no lineage beyond the files themselves. Throws a
+   * RuntimeException if part files are missing, e.g. because some were
+   * written to the local disks of other nodes.
+   */
+  def readPartitioned(sc: SparkContext, iteration: Int): RDD[(CounterMap, HashSet[Int])] = {
+    val path = checkpointPath(iteration)
+    val done = fs.open(new Path(path, DONE_FILE))
+    val numParts = try {
+      done.readInt()
+    } finally {
+      done.close()
+    }
+    val parts = fs.listStatus(path).map(_.getPath)
+      .filter(_.getName.startsWith("part-")).map(_.toString).sorted
+    if (parts.size != numParts) {
+      throw new RuntimeException("Checkpoint " + path + " has " + parts.size +
+        " part files instead of " + numParts)
+    }
+    sc.parallelize(parts, parts.size).flatMap(Checkpointer.readPart(_))
+  }
+
+  /**
+   * Waits for the pending asynchronous write, if any.
+   */
+  def waitForPending() {
+    if (pending != null) {
+      pending.get()
+      pending = null
+    }
+  }
+
+  def close() {
+    waitForPending()
+    writer.shutdown()
+  }
+
+  /**
+   * Closes the checkpointer and deletes its checkpoints, once training has
+   * completed: a later run must not resume from them.
+   */
+  def finish() {
+    close()
+    fs.delete(dirPath, true)
+  }
+
+  private def checkpointIterations(): Seq[(Int, Path)] = {
+    val statuses = fs.listStatus(dirPath)
+    if (statuses == null) return Nil
+    statuses.map(_.getPath).filter { p =>
+      p.getName.startsWith(CHECKPOINT_PREFIX) && !p.getName.endsWith(TMP_SUFFIX)
+    }.map(p => (p.getName.substring(CHECKPOINT_PREFIX.length).toInt, p))
+  }
+
+  private def latestIteration(isComplete: Path => Boolean): Option[Int] = {
+    val iterations = checkpointIterations().filter(p => isComplete(p._2)).map(_._1)
+    if (iterations.isEmpty) None else Some(iterations.max)
+  }
+
+  private def deleteOlderThan(iteration: Int) {
+    checkpointIterations().foreach { case(i, p) =>
+      if (i < iteration) fs.delete(p, true)
+    }
+  }
+}
+
+
+object Checkpointer {
+
+  /**
+   * Creates the checkpointer configured through the aligner.checkpoint.*
+   * properties, or returns null if checkpointing is off. The checkpoints of
+   * a run are kept apart from those of runs on other inputs or settings (see
+   * runId()).
+   */
+  def fromConf(name: String, inputs: String*): Checkpointer = {
+    val interval = AlignerConf.getInt("aligner.checkpoint.interval", 0)
+    if (interval <= 0) return null
+    new Checkpointer(defaultDir("checkpoints", name + "-" + runId(inputs: _*)), interval)
+  }
+
+  /**
+   * Creates the checkpointer that cuts the lineage of a distributed table
+   * every aligner.lineage.interval iterations, or returns null if that is off
+   * (the default). Its files are kept apart by run like the checkpoints, and
+   * are written by the executors, so unless Spark runs locally they have to
+   * be on a filesystem shared by all nodes, e.g. under spark.dfs.
+   */
+  def lineageFromConf(master: String, name: String, inputs: String*): Checkpointer = {
+    val interval = AlignerConf.getInt("aligner.lineage.interval", 0)
+    if (interval <= 0) return null
+    val dir = defaultDir("lineage", name + "-" + runId(inputs: _*))
+    if (!master.startsWith("local") && fileSystem(dir).getUri.getScheme == "file") {
+      throw new IllegalArgumentException("aligner.lineage.interval needs a shared " +
+        "directory, but " + dir + " is local: set spark.dfs or aligner.checkpoint.dir")
+    }
+    new Checkpointer(dir, interval)
+  }
+
+  /**
+   * Identifies a run: aligner.checkpoint.runId if set, and otherwise a hash
+   * of the inputs and of all aligner.* properties other than the
+   * aligner.checkpoint.* ones.
+   */
+  def runId(inputs: String*): String = {
+    val configured = AlignerConf.get("aligner.checkpoint.runId", null)
+    if (configured != null) return configured
+    val settings = System.getProperties.stringPropertyNames.toArray(new Array[String](0))
+      .filter(k => k.startsWith("aligner.") && !k.startsWith("aligner.checkpoint."))
+      .sorted.map(k => k + "=" + System.getProperty(k))
+    val digest = java.security.MessageDigest.getInstance("MD5")
+    (inputs ++ settings).foreach { s => digest.update((s + "\n").getBytes("UTF-8")) }
+    digest.digest().take(8).map(b => "%02x".format(b & 0xff)).mkString
+  }
+
+  /**
+   * Returns aligner.checkpoint.dir if set, and otherwise a directory under
+   * the Spark DFS work directory (spark.dfs + spark.dfs.workdir), or under
+   * /tmp if no DFS is configured.
+   */
+  def defaultDir(kind: String, name: String): String = {
+    val configured = AlignerConf.get("aligner.checkpoint.dir", null)
+    val base =
+      if (configured != null) configured
+      else AlignerConf.get("spark.dfs", "") + AlignerConf.get("spark.dfs.workdir", "/tmp")
+    base + "/" + kind + "/" + name
+  }
+
+  def fileSystem(path: String): FileSystem = {
+    new Path(path).getFileSystem(new Configuration)
+  }
+
+  def writePart(path: Path, rows: Seq[(CounterMap, HashSet[Int])]) {
+    val out = new DataOutputStream(new BufferedOutputStream(
+      fileSystem(path.toString).create(path), 1 << 16))
+    try {
+      out.writeInt(rows.size)
+      rows.foreach { case(cm, seeds) =>
+        out.writeInt(seeds.size)
+        seeds.foreach(out.writeInt(_))
+        TranslationTableIO.write(cm, out)
+      }
+    } finally {
+      out.close()
+    }
+  }
+
+  def readPart(pathString: String): Seq[(CounterMap, HashSet[Int])] = {
+    val path = new Path(pathString)
+    val in = new DataInputStream(new BufferedInputStream(
+      fileSystem(pathString).open(path), 1 << 16))
+    try {
+      val numRows = in.readInt()
+      (0 until numRows).map { _ =>
+        val seeds = new HashSet[Int]
+        val numSeeds = in.readInt()
+        for (i <- 0 until numSeeds) seeds += in.readInt()
+        (TranslationTableIO.read(in), seeds)
+      }.toList
+    } finally {
+      in.close()
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.util.Arrays
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLongArray, AtomicReference}
+
+import scala.collection.JavaConversions._
+
+import edu.berkeley.nlp.mt.SentencePair
+
+
+/**
+ * Numbers the entries of a translation table densely: the rows are sorted
+ * by English word, and row r holds the slots rowStarts(r) until
+ * rowStarts(r + 1), for the French words frenchIds(slot) in ascending
+ * order. Looking up a slot takes two binary searches.
+ *
+ * @author rxin
+ */
+class SlotIndex(
+  val englishIds: Array[Int],
+  val rowStarts: Array[Int],
+  val frenchIds: Array[Int]) {
+
+  def numRows = englishIds.length
+
+  def numSlots = frenchIds.length
+
+  /** The memory held by the arrays of the index, in bytes. */
+  def sizeInBytes: Long = 4L * (englishIds.length + rowStarts.length + frenchIds.length)
+
+  /** The row of an English word, or -1 if it has none. */
+  def row(english: Int): Int = {
+    val row = Arrays.binarySearch(englishIds, english)
+    if (row < 0) -1 else row
+  }
+
+  /** The slot of a French word in a row, or -1 if it has none. */
+  def slot(row: Int, french: Int): Int = {
+    val slot = Arrays.binarySearch(frenchIds, rowStarts(row), rowStarts(row + 1), french)
+    if (slot < 0) -1 else slot
+  }
+}
+
+
+object SlotIndex {
+
+  /** Indexes the entries of a table. */
+  def apply(table: CounterMap): SlotIndex = {
+    val englishIds = table.keys.toArray
+    Arrays.sort(englishIds)
+    val rowStarts = new Array[Int](englishIds.length + 1)
+    for (row <- 0 until englishIds.length) {
+      rowStarts(row + 1) = rowStarts(row) + table(englishIds(row)).size
+    }
+    val frenchIds = new Array[Int](rowStarts(englishIds.length))
+    for (row <- 0 until englishIds.length) {
+      val rowFrenchIds = table(englishIds(row)).keys.toArray
+      Arrays.sort(rowFrenchIds)
+      System.arraycopy(rowFrenchIds, 0, frenchIds, rowStarts(row), rowFrenchIds.length)
+    }
+    new SlotIndex(englishIds, rowStarts, frenchIds)
+  }
+}
+
+
+/**
+ * A count table that many threads add to at once, without locks. The counts
+ * are doubles stored as their bits in an AtomicLongArray, one cell per slot
+ * of a SlotIndex, and are added to with compare-and-set loops. The table
+ * thus takes 8 bytes per entry however many threads write to it, where a
+ * CounterMap per thread takes tens of bytes per entry per thread.
+ *
+ * Every French word of every sentence adds to the NULL row, so all threads
+ * contend for its cells. Hot rows (NULL by default) therefore get one copy
+ * of their cells per stripe, with each thread adding to the copy of its own
+ * stripe; the copies are summed when the counts are read.
+ *
+ * Counts for entries outside the index, which the E step of a table it was
+ * built from never produces, go to a synchronized CounterMap.
+ *
+ * Once the writers have finished, normalize() turns the counts into
+ * probabilities in place, so that the table can serve as the next E step's
+ * translation table without being copied into a CounterMap.
+ *
+ * @author rxin
+ */
+class ConcurrentCountTable(
+  val index: SlotIndex,
+  val stripes: Int = ConcurrentCountTable.STRIPES,
+  hotRows: Seq[Int] = Seq(0)) extends TranslationProbs with CountTable {
+
+  import ConcurrentCountTable._
+
+  private val cells = new AtomicLongArray(index.numSlots)
+
+  // The offset of every hot row's striped cells, or -1 for other rows.
+  private val stripeOffsets = Array.fill(index.numRows)(-1)
+
+  private val stripedCells = {
+    var numCells = 0
+    hotRows.map(index.row).filter(_ >= 0).distinct.foreach { row =>
+      stripeOffsets(row) = numCells
+      numCells += stripes * rowLength(row)
+    }
+    new AtomicLongArray(numCells)
+  }
+
+  private val nextStripe = new AtomicInteger
+
+  private val stripe = new ThreadLocal[Int] {
+    override def initialValue = nextStripe.getAndIncrement() % stripes
+  }
+
+  private val overflow = new CounterMap
+
+  // Set by normalize(), which sums the stripes into the cells.
+  @volatile private var stripesFolded = false
+
+  /**
+   * The memory held by the cells and by the index they are laid out by, in
+   * bytes. The overflow CounterMap is left out.
+   */
+  def sizeInBytes: Long =
+    8L * (cells.length + stripedCells.length) + 4L * stripeOffsets.length + index.sizeInBytes
+
+  private def rowLength(row: Int) = index.rowStarts(row + 1) - index.rowStarts(row)
+
+  def incrementCount(english: Int, french: Int, amount: Double) {
+    val row = index.row(english)
+    val slot = if (row < 0) -1 else index.slot(row, french)
+    if (slot < 0) {
+      overflow.synchronized { overflow.incrementCount(english, french, amount) }
+    } else if (stripeOffsets(row) < 0) {
+      add(cells, slot, amount)
+    } else {
+      // The stripes of a row are consecutive copies of it.
+      add(stripedCells, stripeOffsets(row) + stripe.get * rowLength(row) +
+        slot - index.rowStarts(row), amount)
+    }
+  }
+
+  def getCount(english: Int, french: Int): Double = {
+    val row = index.row(english)
+    val slot = if (row < 0) -1 else index.slot(row, french)
+    if (slot < 0) overflow.synchronized { overflow.getCount(english, french) }
+    else slotCount(row, slot)
+  }
+
+  private def slotCount(row: Int, slot: Int): Double = {
+    var count = java.lang.Double.longBitsToDouble(cells.get(slot))
+    if (stripeOffsets(row) >= 0 && !stripesFolded) {
+      val offset = stripeOffsets(row) + slot - index.rowStarts(row)
+      for (s <- 0 until stripes) {
+        count += java.lang.Double.longBitsToDouble(stripedCells.get(offset + s * rowLength(row)))
+      }
+    }
+    count
+  }
+
+  /** Adds the counts of a CounterMap, e.g. prior counts, into this table. */
+  def mergeWith(counterMap: CounterMap): ConcurrentCountTable = {
+    counterMap.foreach { case(e, counter) =>
+      counter.foreach { case(f, count) => incrementCount(e, f, count) }
+    }
+    this
+  }
+
+  /**
+   * Normalizes every row in place, over its cells and its overflow entries.
+   * The stripes of hot rows are summed into the cells first. The writers
+   * must have finished, and no counts may be added afterwards.
+   */
+  def normalize() {
+    for (row <- 0 until index.numRows) {
+      val overflowRow = overflow.get(index.englishIds(row)).orNull
+      var rowSum = if (overflowRow == null) 0.0 else overflowRow.values.sum
+      for (slot <- index.rowStarts(row) until index.rowStarts(row + 1)) {
+        val count = slotCount(row, slot)
+        cells.set(slot, java.lang.Double.doubleToRawLongBits(count))
+        rowSum += count
+      }
+      if (rowSum > 0) {
+        for (slot <- index.rowStarts(row) until index.rowStarts(row + 1)) {
+          cells.set(slot, java.lang.Double.doubleToRawLongBits(
+            java.lang.Double.longBitsToDouble(cells.get(slot)) / rowSum))
+        }
+        if (overflowRow != null) {
+          overflowRow.foreach { case(f, count) => overflowRow.setCount(f, count / rowSum) }
+        }
+      }
+    }
+    stripesFolded = true
+    // Rows outside the index are all overflow.
+    overflow.foreach { case(e, counter) => if (index.row(e) < 0) counter.normalize() }
+  }
+
+  /**
+   * Copies the counts into a CounterMap. The writers must have finished.
+   * Entries that were never added to are left out.
+   */
+  def toCounterMap: CounterMap = {
+    val counterMap = overflow.copy
+    for (row <- 0 until index.numRows) {
+      var counter: Counter = null
+      for (slot <- index.rowStarts(row) until index.rowStarts(row + 1)) {
+        val count = slotCount(row, slot)
+        if (count != 0) {
+          if (counter == null) counter = counterMap.ensureCounter(index.englishIds(row))
+          counter.incrementCount(index.frenchIds(slot), count)
+        }
+      }
+    }
+    counterMap
+  }
+}
+
+
+object ConcurrentCountTable {
+
+  /** The copies of each hot row; more stripes mean less contention. */
+  val STRIPES = AlignerConf.getInt("aligner.threads.stripes", 8)
+
+  /** Adds to the double whose bits are in cells(i). */
+  def add(cells: AtomicLongArray, i: Int, amount: Double) {
+    while (true) {
+      val old = cells.get(i)
+      val updated = java.lang.Double.doubleToRawLongBits(
+        java.lang.Double.longBitsToDouble(old) + amount)
+      if (cells.compareAndSet(i, old, updated)) return
+    }
+  }
+}
+
+
+/**
+ * Runs the E step on several threads. The corpus is cut into chunks of
+ * CHUNK_PAIRS pairs in file order, and every thread repeatedly takes the
+ * next chunk until none is left, so that threads finishing early pick up the
+ * rest of the work.
+ *
+ * Set aligner.threads to the number of threads for AlignerSingleThread's
+ * E step to use; they all add to one ConcurrentCountTable. The E step is
+ * that of LengthBuckets.addExpectedCountsByLink, which aligns to NULL once
+ * per French word.
+ *
+ * @author rxin
+ */
+object ConcurrentEStep {
+
+  val NUM_THREADS = AlignerConf.getInt("aligner.threads", 1)
+
+  val CHUNK_PAIRS = AlignerConf.getInt("aligner.threads.chunk", 1024)
+
+  def chunks(pairs: Iterator[SimpleSentencePair], chunkPairs: Int = CHUNK_PAIRS): Array[SentenceBucket] = {
+    pairs.grouped(chunkPairs).map(LengthBuckets.toBucket).toArray
+  }
+
+  /**
+   * Calls work(thread, chunk) for every chunk, on numThreads threads numbered
+   * from 0, and waits for them. Rethrows the first failure of any thread.
+   */
+  def run(chunks: Seq[SentenceBucket], numThreads: Int)(work: (Int, SentenceBucket) => Unit) {
+    val nextChunk = new AtomicInteger
+    val failure = new AtomicReference[Throwable]
+    val threads = (0 until numThreads).map { t =>
+      new Thread("E step " + t) {
+        override def run() {
+          try {
+            var c = nextChunk.getAndIncrement()
+            while (c < chunks.size && failure.get == null) {
+              work(t, chunks(c))
+              c = nextChunk.getAndIncrement()
+            }
+          } catch {
+            case e: Throwable => failure.compareAndSet(null, e)
+          }
+        }
+      }
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    if (failure.get != null) throw new RuntimeException("The E step failed", failure.get)
+  }
+
+  /**
+   * Adds the expected counts of all chunks into one table, which must allow
+   * several threads to add to it at once, as a ConcurrentCountTable does.
+   */
+  def addExpectedCounts(chunks: Seq[SentenceBucket], table: TranslationProbs,
+    nullLikelihood: Double, counts: CountTable, numThreads: Int = NUM_THREADS) {
+    run(chunks, numThreads) { (thread, chunk) =>
+      LengthBuckets.addExpectedCountsByLink(chunk, table, nullLikelihood, counts)
+    }
+  }
+
+  /**
+   * Computes the expected counts with one CounterMap per thread, merged at
+   * the end: the approach the shared table replaces. Returns the merged
+   * counts and the number of entries of all the per-thread tables.
+   */
+  def expectedCountsPerThread(chunks: Seq[SentenceBucket], table: TranslationProbs,
+    nullLikelihood: Double, numThreads: Int): (CounterMap, Long) = {
+    val perThread = Array.fill(numThreads)(new CounterMap)
+    run(chunks, numThreads) { (thread, chunk) =>
+      LengthBuckets.addExpectedCounts(chunk, table, nullLikelihood, perThread(thread))
+    }
+    val numEntries = perThread.map(_.values.map(_.size.toLong).sum).sum
+    (perThread.reduce(CounterMap.merge), numEntries)
+  }
+}
+
+
+/**
+ * Compares the E step into one shared ConcurrentCountTable with the E step
+ * into one CounterMap per thread, for 1, 2, 4, ... threads: the time per
+ * E step, and the memory the counts take. The shared side includes the
+ * SlotIndex, which is on the heap alongside the cells, and the M step's
+ * normalization in place; the per-thread side, the merge of the tables.
+ *
+ * Usage: ConcurrentCountBenchmark <max training pairs> [data path] [max threads] [iterations]
+ */
+object ConcurrentCountBenchmark extends Application {
+
+  override def main(args: Array[String]) {
+    val path = if (args.length > 1) args(1) else "./data/"
+    val maxThreads = if (args.length > 2) args(2).toInt else Runtime.getRuntime.availableProcessors
+    val iterations = if (args.length > 3) args(3).toInt else 3
+    val trainingPairs = SentencePair.readSentencePairs(path + "/training", args(0).toInt)
+
+    val aligner = new AlignerSingleThread
+    aligner.init(trainingPairs)
+    val table = aligner.alignProb
+    val nullLikelihood = aligner.NULL_LIKELIHOOD
+    val chunks = ConcurrentEStep.chunks(
+      trainingPairs.iterator.map(SimpleSentencePair.fromSentencePair))
+    val index = SlotIndex(table)
+    val numLinks = chunks.map(_.numLinks).sum
+    println(chunks.map(_.size).sum + " pairs in " + chunks.size + " chunks, " +
+      numLinks + " links, " + index.numSlots + " table entries")
+
+    def time(run: => Unit): Double = {
+      // The first run warms up the JIT.
+      run
+      val startTime = System.nanoTime
+      for (i <- 1 to iterations) run
+      (System.nanoTime - startTime) / 1e9 / iterations
+    }
+
+    var threads = 1
+    while (threads <= maxThreads) {
+      var sharedBytes = 0L
+      val sharedSeconds = time {
+        val counts = new ConcurrentCountTable(index)
+        ConcurrentEStep.addExpectedCounts(chunks, table, nullLikelihood, counts, threads)
+        counts.normalize()
+        sharedBytes = counts.sizeInBytes
+      }
+      var perThreadEntries = 0L
+      val perThreadSeconds = time {
+        perThreadEntries =
+          ConcurrentEStep.expectedCountsPerThread(chunks, table, nullLikelihood, threads)._2
+      }
+      println("%2d threads: shared %.3f s (%.0f links/s, ~%d MB), per-thread %.3f s (%.0f links/s, ~%d MB)".format(
+        threads, sharedSeconds, numLinks / sharedSeconds, sharedBytes >> 20,
+        perThreadSeconds, numLinks / perThreadSeconds,
+        (perThreadEntries * SpillingCountTable.ENTRY_BYTES) >> 20))
+      threads *= 2
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package edu.berkeley.cs.amplab.aligner
+
+import spark.{Accumulator, RDD, SparkContext}
+
+import edu.berkeley.nlp.mt.SentencePairFilter
+import edu.berkeley.nlp.mt.SentencePairFilter.Rejection
+
+
+/**
+ * Corpus filtering for the drivers, configured through the aligner.filter.*
+ * properties:
+ *
+ *   aligner.filter.maxLength  maximum number of words per side (0: no limit)
+ *   aligner.filter.maxRatio   maximum length ratio of the sides (0: no limit)
+ *   aligner.filter.dropEmpty  drop pairs with an empty side
+ *   aligner.filter.dedupe     drop repeated pairs
+ *
+ * @author rxin
+ */
+object CorpusFilter {
+
+  /**
+   * Returns the configured filter, or null if no filtering is configured.
+   */
+  def fromConf(): SentencePairFilter = {
+    val maxLength = AlignerConf.getInt("aligner.filter.maxLength", 0)
+    val maxRatio = AlignerConf.getDouble("aligner.filter.maxRatio", 0.0)
+    val dropEmpty = AlignerConf.getBoolean("aligner.filter.dropEmpty", false)
+    val dedupe = AlignerConf.getBoolean("aligner.filter.dedupe", false)
+    if (maxLength <= 0 && maxRatio <= 0 && !dropEmpty && !dedupe) null
+    else new SentencePairFilter(maxLength, maxRatio, dropEmpty, dedupe)
+  }
+
+  /**
+   * Drops the integerized training lines ("e1 e2 ... | f1 f2 ..." or
+   * "e1 e2 ... | f1 f2 ... | count") that the filter rejects, before they are
+   * parsed into SimpleSentencePairs. The count takes no part in the checks.
+   * Every task gets its own copy of the filter, so duplicates are only
+   * recognized within a split.
+   */
+  def filterLines(lines: RDD[String], filter: SentencePairFilter,
+    counters: RejectionCounters): RDD[String] = {
+    lines.filter { line =>
+      val bar = line.indexOf('|')
+      // Malformed lines are left for the parser to complain about
+      if (bar < 0) {
+        true
+      } else {
+        val countBar = line.indexOf('|', bar + 1)
+        val frenchEnd = if (countBar < 0) line.length else countBar
+        val rejection = filter.check(line, 0, bar, line, bar + 1, frenchEnd,
+          SentencePairFilter.NO_POSITION)
+        counters.add(rejection)
+        rejection == null
+      }
+    }
+  }
+
+  /**
+   * Drops the pairs of an already integerized corpus (e.g. a BinaryCorpus)
+   * that the filter rejects. Only the length checks apply: there are no
+   * lines to recognize duplicates by, which aligner.dedupe handles instead.
+   */
+  def filterPairs(pairs: RDD[SimpleSentencePair], filter: SentencePairFilter,
+    counters: RejectionCounters): RDD[SimpleSentencePair] = {
+    val accept = acceptLengths(filter, counters)
+    pairs.filter { pair => accept(pair.englishWords.size, pair.frenchWords.size) }
+  }
+
+  /**
+   * The length checks of filterPairs(), on the English and French lengths of
+   * a pair, for pairs that are not SimpleSentencePairs (see
+   * BinaryCorpus.buckets).
+   */
+  def acceptLengths(filter: SentencePairFilter,
+    counters: RejectionCounters): (Int, Int) => Boolean = {
+    (englishLength: Int, frenchLength: Int) => {
+      val rejection = filter.checkLengths(englishLength, frenchLength)
+      counters.add(rejection)
+      rejection == null
+    }
+  }
+}
+
+
+/**
+ * Counts the pairs rejected by the tasks of a filtered RDD, by reason. The
+ * counts are accumulators, so they include every computation of the RDD so
+ * far (one per pass if it is not cached).
+ */
+@serializable
+class RejectionCounters(sc: SparkContext) {
+
+  val counts: Array[Accumulator[Int]] = Rejection.values.map(r => sc.accumulator(0))
+
+  def add(rejection: Rejection) {
+    if (rejection != null) counts(rejection.ordinal) += 1
+  }
+
+  def report() {
+    println("Rejected sentence pairs: " + Rejection.values.zip(counts).map {
+      case(rejection, count) => rejection + " " + count.value
+    }.mkString(", "))
+  }
+}
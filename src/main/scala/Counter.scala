@@ -3,7 +3,7 @@ package edu.berkeley.cs.amplab.aligner
 import scala.collection.mutable.HashMap
 
 
-class CounterMap extends HashMap[Int, Counter] {
+class CounterMap extends HashMap[Int, Counter] with TranslationProbs with CountTable {
   
   /**
    * Gets the count of the given (key, value) entry, or zero if that entry is
@@ -48,6 +48,15 @@ class CounterMap extends HashMap[Int, Counter] {
     this
   }
 
+  /**
+   * Returns a deep copy of this CounterMap.
+   */
+  def copy: CounterMap = {
+    val cm = new CounterMap
+    foreach { case(k, v) => cm.put(k, v.copy) }
+    cm
+  }
+
   def ensureCounter(key: Int): Counter = {
     get(key) match {
       case Some(counter) => counter
@@ -103,6 +112,15 @@ class Counter extends HashMap[Int, Double] {
     }
   }
 
+  /**
+   * Returns a copy of this Counter.
+   */
+  def copy: Counter = {
+    val counter = new Counter
+    foreach { case(k, v) => counter.put(k, v) }
+    counter
+  }
+
   /**
    * Merge the current Counter with another Counter, and return the result.
    * The merge is in place, i.e. affects the current Counter.
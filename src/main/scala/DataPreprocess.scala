@@ -1,7 +1,7 @@
 package edu.berkeley.cs.amplab.aligner
 
 import scala.io._
-import scala.collection.mutable.HashMap
+import scala.collection.mutable.{ArrayBuffer, HashMap}
 
 import java.io.FileWriter
 
@@ -16,6 +16,14 @@ object DataPreprocessor extends Application {
 
     val converter = new Converter
 
+    // When new data arrives for an already trained model, extend the model's
+    // dictionary so that existing words keep their IDs.
+    val existingDictionary = AlignerConf.get("aligner.dictionary", null)
+    if (existingDictionary != null) {
+      converter.readDictionary(existingDictionary)
+      println("# of vocab in " + existingDictionary + ": " + converter.index.size)
+    }
+
     args.drop(1).foreach( file => {
         println("Converting " + file)
         converter.convert(file)
@@ -27,6 +35,43 @@ object DataPreprocessor extends Application {
 }
 
 
+/**
+ * Collapses repeated pairs of an integerized training file ("e1 e2 ... |
+ * f1 f2 ..." per line) into one line each, with the number of occurrences
+ * as a third field: "e1 e2 ... | f1 f2 ... | count". Pairs keep the order of
+ * their first occurrence.
+ *
+ * Usage: Deduplicator <input file> <output file>
+ */
+object Deduplicator extends Application {
+
+  override def main(args: Array[String]) {
+    val counts = new HashMap[String, Int]
+    val order = new ArrayBuffer[String]
+    var numLines = 0
+
+    Source.fromFile(args(0)).getLines.foreach( line => {
+      val pair = SimpleSentencePair.lineToSimpleSentencePair(line)
+      val key = pair.key
+      if (!counts.contains(key)) {
+        counts(key) = 0
+        order += key
+      }
+      counts(key) += pair.count
+      numLines += 1
+    })
+
+    val out = new FileWriter(args(1))
+    order.foreach( key => {
+      out.write(key + " | " + counts(key) + "\n")
+    })
+    out.close()
+
+    println("Deduplicated " + numLines + " lines into " + order.size)
+  }
+}
+
+
 class Converter {
  
   /**
@@ -45,6 +90,18 @@ class Converter {
     out.close()
   }
 
+  /**
+   * Loads a dictionary written by writeDictionary. Words added by later calls
+   * to convert() get IDs after the existing ones.
+   */
+  def readDictionary(inputFile: String) {
+    Source.fromFile(inputFile).getLines.foreach( line => {
+      val entry = line.stripLineEnd
+      val split = entry.lastIndexOf(' ')
+      index += entry.substring(0, split) -> entry.substring(split + 1).toInt
+    })
+  }
+
   def convert(file: String) {
     val s = Source.fromFile(file)
 
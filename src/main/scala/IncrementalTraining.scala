@@ -0,0 +1,85 @@
+package edu.berkeley.cs.amplab.aligner
+
+
+/**
+ * Helpers for updating a trained model when new parallel data arrives.
+ *
+ * Instead of retraining from scratch, a trainer warm-starts from the saved
+ * translation table, extended with entries for word pairs that only occur in
+ * the new data, and runs a few EM iterations over the new data only. The
+ * old data is represented by a snapshot of its expected counts (sufficient
+ * statistics) from the end of the previous run, which is added to the new
+ * expected counts in every M step.
+ *
+ * Without those statistics, the rows of English words that occur in the new
+ * data are re-estimated from the new data alone and lose the mass of the old
+ * data. The rows of all other English words are kept from the trained table
+ * (see keepMissingRows()).
+ *
+ * @author rxin
+ */
+object IncrementalTraining {
+
+  /**
+   * The weight of a new entry in an existing row of the table, relative to
+   * its initial (co-occurrence) probability. Existing rows are already
+   * trained, so new entries start small and have to earn their mass.
+   */
+  val NEW_ENTRY_WEIGHT = 0.1
+
+  /**
+   * Extends a trained translation table with the entries of an initial table
+   * computed from the new data. Rows that are missing from the trained table
+   * (new English words) are taken as they are. Entries missing from existing
+   * rows (new French words) are added with NEW_ENTRY_WEIGHT times their
+   * initial probability, and the affected rows are renormalized.
+   */
+  def extend(trainedTable: CounterMap, initTable: CounterMap): CounterMap = {
+    val table = trainedTable.copy
+    var newRows = 0
+
+    initTable.foreach { case(e, initRow) =>
+      if (!table.contains(e)) newRows += 1
+      table.put(e, extendRow(table.get(e).orNull, initRow))
+    }
+
+    println("Warm start: " + newRows + " new rows out of " + initTable.size)
+    table
+  }
+
+  /**
+   * Adds the rows of a trained table that are missing from a table retrained
+   * on new data, i.e. those of English words that do not occur in the new
+   * data, into the retrained table. Returns the retrained table.
+   */
+  def keepMissingRows(trainedTable: CounterMap, retrainedTable: CounterMap): CounterMap = {
+    var keptRows = 0
+    trainedTable.foreach { case(e, row) =>
+      if (!retrainedTable.contains(e)) {
+        retrainedTable.put(e, row)
+        keptRows += 1
+      }
+    }
+    println("Warm start: kept " + keptRows + " rows not in the new data")
+    retrainedTable
+  }
+
+  /**
+   * Extends one row of a trained table (null if the row is new) with the
+   * entries of the corresponding initial row. Returns a new Counter.
+   */
+  def extendRow(trainedRow: Counter, initRow: Counter): Counter = {
+    if (trainedRow == null) return initRow.copy
+
+    val row = trainedRow.copy
+    var changed = false
+    initRow.foreach { case(f, p) =>
+      if (!row.contains(f)) {
+        row.setCount(f, p * NEW_ENTRY_WEIGHT)
+        changed = true
+      }
+    }
+    if (changed) row.normalize()
+    row
+  }
+}
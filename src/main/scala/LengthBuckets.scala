@@ -0,0 +1,418 @@
+package edu.berkeley.cs.amplab.aligner
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.{ArrayBuffer, HashMap}
+
+import edu.berkeley.nlp.mt.SentencePair
+
+
+/**
+ * A batch of sentence pairs of similar lengths, stored contiguously as flat
+ * int arrays. The English words of pair s are
+ * english(englishStarts(s) until englishStarts(s + 1)), and likewise for
+ * French; counts(s) is the count of a deduplicated pair.
+ *
+ * @author rxin
+ */
+@serializable
+class SentenceBucket(
+  val english: Array[Int],
+  val englishStarts: Array[Int],
+  val french: Array[Int],
+  val frenchStarts: Array[Int],
+  val counts: Array[Int],
+  val maxEnglishLength: Int,
+  val maxFrenchLength: Int) {
+
+  def size = counts.length
+
+  /** The number of (English, French) word pairs, i.e. the E-step work. */
+  def numLinks: Long = {
+    var links = 0L
+    var s = 0
+    while (s < size) {
+      links += (englishStarts(s + 1) - englishStarts(s) + 1).toLong *
+        (frenchStarts(s + 1) - frenchStarts(s))
+      s += 1
+    }
+    links
+  }
+}
+
+
+/**
+ * Reorganizes a corpus into length buckets for the E step.
+ *
+ * In file order, consecutive sentence pairs have very different lengths, so
+ * the E step keeps switching between loop shapes and scratch buffer sizes.
+ * Grouping pairs whose English and French lengths fall in the same
+ * BUCKET_WIDTH-wide ranges gives batches of the same shape: their scratch
+ * buffers are sized once per bucket, and their words are read sequentially
+ * from flat arrays instead of boxed buffers.
+ *
+ * @author rxin
+ */
+object LengthBuckets {
+
+  /** Pairs share a bucket if both their lengths agree after division by this. */
+  val BUCKET_WIDTH = AlignerConf.getInt("aligner.bucket.width", 4)
+
+  /**
+   * Groups pairs into length buckets, ordered by length. Within a bucket,
+   * pairs keep their relative order.
+   */
+  def bucketize(pairs: Iterator[SimpleSentencePair], width: Int = BUCKET_WIDTH): Array[SentenceBucket] = {
+    val groups = new HashMap[(Int, Int), ArrayBuffer[SimpleSentencePair]]
+    pairs.foreach { pair =>
+      val key = (numEnglishWords(pair) / width, pair.frenchWords.size / width)
+      groups.getOrElseUpdate(key, new ArrayBuffer[SimpleSentencePair]) += pair
+    }
+    groups.toArray.sortBy(_._1).map { case(key, group) => toBucket(group) }
+  }
+
+  /**
+   * Regroups the pairs of blocks of flat arrays, such as the blocks of a
+   * BinaryCorpus, into length buckets as bucketize() does, by copying slices
+   * of the arrays instead of going through SimpleSentencePairs. Only the
+   * first maxPairs pairs are read, and of those only the ones whose English
+   * and French lengths pass accept (if given) are kept.
+   */
+  def bucketizeBlocks(blocks: Iterator[SentenceBucket], maxPairs: Int = Int.MaxValue,
+    width: Int = BUCKET_WIDTH, accept: (Int, Int) => Boolean = null): Array[SentenceBucket] = {
+    // The first pass assigns every kept pair to a bucket and sizes the
+    // buckets: their numbers of pairs, English words and French words.
+    val bucketIndices = new HashMap[(Int, Int), Int]
+    val sizes = new ArrayBuffer[Array[Int]]
+    val blocksRead = new ArrayBuffer[(SentenceBucket, Array[Int])]
+    var numPairs = 0
+    while (blocks.hasNext && numPairs < maxPairs) {
+      val block = blocks.next()
+      val bucketOf = Array.fill(block.size)(-1)
+      var s = 0
+      while (s < block.size && numPairs < maxPairs) {
+        val englishLength = block.englishStarts(s + 1) - block.englishStarts(s)
+        val frenchLength = block.frenchStarts(s + 1) - block.frenchStarts(s)
+        if (accept == null || accept(englishLength, frenchLength)) {
+          val b = bucketIndices.getOrElseUpdate((englishLength / width, frenchLength / width), {
+            sizes += new Array[Int](3)
+            sizes.size - 1
+          })
+          sizes(b)(0) += 1
+          sizes(b)(1) += englishLength
+          sizes(b)(2) += frenchLength
+          bucketOf(s) = b
+        }
+        numPairs += 1
+        s += 1
+      }
+      blocksRead += ((block, bucketOf))
+    }
+
+    val builders = sizes.map(size => new BucketBuilder(size(0), size(1), size(2)))
+    blocksRead.foreach { case(block, bucketOf) =>
+      for (s <- 0 until bucketOf.length if bucketOf(s) >= 0) builders(bucketOf(s)).add(block, s)
+    }
+    bucketIndices.toArray.sortBy(_._1).map { case(key, b) => builders(b).result }
+  }
+
+  /** Fills the flat arrays of a bucket of known size, one pair at a time. */
+  private class BucketBuilder(numPairs: Int, numEnglishWords: Int, numFrenchWords: Int) {
+    val english = new Array[Int](numEnglishWords)
+    val englishStarts = new Array[Int](numPairs + 1)
+    val french = new Array[Int](numFrenchWords)
+    val frenchStarts = new Array[Int](numPairs + 1)
+    val counts = new Array[Int](numPairs)
+    var size = 0
+    var maxEnglishLength = 0
+    var maxFrenchLength = 0
+
+    /** Appends pair s of a block. */
+    def add(block: SentenceBucket, s: Int) {
+      val englishLength = block.englishStarts(s + 1) - block.englishStarts(s)
+      val frenchLength = block.frenchStarts(s + 1) - block.frenchStarts(s)
+      System.arraycopy(block.english, block.englishStarts(s), english, englishStarts(size), englishLength)
+      System.arraycopy(block.french, block.frenchStarts(s), french, frenchStarts(size), frenchLength)
+      englishStarts(size + 1) = englishStarts(size) + englishLength
+      frenchStarts(size + 1) = frenchStarts(size) + frenchLength
+      counts(size) = block.counts(s)
+      if (englishLength > maxEnglishLength) maxEnglishLength = englishLength
+      if (frenchLength > maxFrenchLength) maxFrenchLength = frenchLength
+      size += 1
+    }
+
+    def result = new SentenceBucket(english, englishStarts, french, frenchStarts, counts,
+      maxEnglishLength, maxFrenchLength)
+  }
+
+  /**
+   * Puts all pairs into a single bucket in file order, as a baseline for
+   * bucketize().
+   */
+  def inFileOrder(pairs: Iterator[SimpleSentencePair]): Array[SentenceBucket] = {
+    Array(toBucket(pairs.toSeq))
+  }
+
+  /**
+   * init() appends NULL (0) to the English side of the pairs it sees; the
+   * buckets leave it out, since the E step aligns to NULL implicitly.
+   */
+  private def numEnglishWords(pair: SimpleSentencePair) = pair.englishWords.count(_ != 0)
+
+  def toBucket(pairs: Seq[SimpleSentencePair]): SentenceBucket = {
+    val numPairs = pairs.size
+    val englishStarts = new Array[Int](numPairs + 1)
+    val frenchStarts = new Array[Int](numPairs + 1)
+    val counts = new Array[Int](numPairs)
+    var maxEnglishLength = 0
+    var maxFrenchLength = 0
+    pairs.zipWithIndex.foreach { case(pair, s) =>
+      val englishLength = numEnglishWords(pair)
+      val frenchLength = pair.frenchWords.size
+      englishStarts(s + 1) = englishStarts(s) + englishLength
+      frenchStarts(s + 1) = frenchStarts(s) + frenchLength
+      counts(s) = pair.count
+      if (englishLength > maxEnglishLength) maxEnglishLength = englishLength
+      if (frenchLength > maxFrenchLength) maxFrenchLength = frenchLength
+    }
+
+    val english = new Array[Int](englishStarts(numPairs))
+    val french = new Array[Int](frenchStarts(numPairs))
+    pairs.zipWithIndex.foreach { case(pair, s) =>
+      var i = englishStarts(s)
+      pair.englishWords.foreach { e => if (e != 0) { english(i) = e ; i += 1 } }
+      i = frenchStarts(s)
+      pair.frenchWords.foreach { f => french(i) = f ; i += 1 }
+    }
+
+    new SentenceBucket(english, englishStarts, french, frenchStarts, counts,
+      maxEnglishLength, maxFrenchLength)
+  }
+
+  /**
+   * Adds the Model 1 expected counts of the pairs of a bucket under the
+   * translation table into counts, weighted by the pairs' counts. NULL (0)
+   * is aligned once per French word, as in StepwiseModel1. The rows of the
+   * table and of counts are looked up once per English word of a sentence,
+   * not once per link.
+   */
+  def addExpectedCounts(bucket: SentenceBucket, table: CounterMap,
+    nullLikelihood: Double, counts: CounterMap) {
+    val nonNullLikelihood = 1 - nullLikelihood
+    val rows = new Array[Counter](bucket.maxEnglishLength)
+    val countRows = new Array[Counter](bucket.maxEnglishLength)
+    val alignDist = new Array[Double](bucket.maxEnglishLength)
+    val nullRow = table.get(0).orNull
+    val nullCountRow = counts.ensureCounter(0)
+
+    var s = 0
+    while (s < bucket.size) {
+      val englishStart = bucket.englishStarts(s)
+      val englishLength = bucket.englishStarts(s + 1) - englishStart
+      val distortion = nonNullLikelihood / (englishLength + 1)
+      val weight = bucket.counts(s)
+
+      var i = 0
+      while (i < englishLength) {
+        val e = bucket.english(englishStart + i)
+        rows(i) = table.get(e).orNull
+        countRows(i) = counts.ensureCounter(e)
+        i += 1
+      }
+
+      var j = bucket.frenchStarts(s)
+      val frenchEnd = bucket.frenchStarts(s + 1)
+      while (j < frenchEnd) {
+        val f = bucket.french(j)
+        val nullProb = (if (nullRow == null) 0.0 else nullRow.getCount(f)) * nullLikelihood
+        var alignDistSum = nullProb
+        i = 0
+        while (i < englishLength) {
+          alignDist(i) = (if (rows(i) == null) 0.0 else rows(i).getCount(f)) * distortion
+          alignDistSum += alignDist(i)
+          i += 1
+        }
+
+        // A French word that no English word can translate has no posterior.
+        if (alignDistSum > 0) {
+          nullCountRow.incrementCount(f, weight * nullProb / alignDistSum)
+          i = 0
+          while (i < englishLength) {
+            countRows(i).incrementCount(f, weight * alignDist(i) / alignDistSum)
+            i += 1
+          }
+        }
+        j += 1
+      }
+      s += 1
+    }
+  }
+
+  /**
+   * Adds the expected counts of the pairs of a bucket under a table of any
+   * precision, such as a CompactTranslationTable, into a CounterMap. It looks
+   * up every link in the table, but the rows of counts only once per English
+   * word of a sentence.
+   */
+  def addExpectedCounts(bucket: SentenceBucket, table: TranslationProbs,
+    nullLikelihood: Double, counts: CounterMap) {
+    val nonNullLikelihood = 1 - nullLikelihood
+    val countRows = new Array[Counter](bucket.maxEnglishLength)
+    val alignDist = new Array[Double](bucket.maxEnglishLength)
+    val nullCountRow = counts.ensureCounter(0)
+
+    var s = 0
+    while (s < bucket.size) {
+      val englishStart = bucket.englishStarts(s)
+      val englishLength = bucket.englishStarts(s + 1) - englishStart
+      val distortion = nonNullLikelihood / (englishLength + 1)
+      val weight = bucket.counts(s)
+
+      var i = 0
+      while (i < englishLength) {
+        countRows(i) = counts.ensureCounter(bucket.english(englishStart + i))
+        i += 1
+      }
+
+      var j = bucket.frenchStarts(s)
+      val frenchEnd = bucket.frenchStarts(s + 1)
+      while (j < frenchEnd) {
+        val f = bucket.french(j)
+        val nullProb = table.getCount(0, f) * nullLikelihood
+        var alignDistSum = nullProb
+        i = 0
+        while (i < englishLength) {
+          alignDist(i) = table.getCount(bucket.english(englishStart + i), f) * distortion
+          alignDistSum += alignDist(i)
+          i += 1
+        }
+
+        if (alignDistSum > 0) {
+          nullCountRow.incrementCount(f, weight * nullProb / alignDistSum)
+          i = 0
+          while (i < englishLength) {
+            countRows(i).incrementCount(f, weight * alignDist(i) / alignDistSum)
+            i += 1
+          }
+        }
+        j += 1
+      }
+      s += 1
+    }
+  }
+
+  /**
+   * Adds the expected counts of the pairs of a bucket under a table of any
+   * precision into any count table, such as an OffHeapTable. It looks up
+   * every link in both.
+   */
+  def addExpectedCountsByLink(bucket: SentenceBucket, table: TranslationProbs,
+    nullLikelihood: Double, counts: CountTable) {
+    val nonNullLikelihood = 1 - nullLikelihood
+    val alignDist = new Array[Double](bucket.maxEnglishLength)
+
+    var s = 0
+    while (s < bucket.size) {
+      val englishStart = bucket.englishStarts(s)
+      val englishLength = bucket.englishStarts(s + 1) - englishStart
+      val distortion = nonNullLikelihood / (englishLength + 1)
+      val weight = bucket.counts(s)
+
+      var j = bucket.frenchStarts(s)
+      val frenchEnd = bucket.frenchStarts(s + 1)
+      while (j < frenchEnd) {
+        val f = bucket.french(j)
+        val nullProb = table.getCount(0, f) * nullLikelihood
+        var alignDistSum = nullProb
+        var i = 0
+        while (i < englishLength) {
+          alignDist(i) = table.getCount(bucket.english(englishStart + i), f) * distortion
+          alignDistSum += alignDist(i)
+          i += 1
+        }
+
+        if (alignDistSum > 0) {
+          counts.incrementCount(0, f, weight * nullProb / alignDistSum)
+          i = 0
+          while (i < englishLength) {
+            counts.incrementCount(bucket.english(englishStart + i), f,
+              weight * alignDist(i) / alignDistSum)
+            i += 1
+          }
+        }
+        j += 1
+      }
+      s += 1
+    }
+  }
+
+  /**
+   * Runs the E step over all buckets and adds the expected counts into
+   * counts, in double precision whatever the precision of the table.
+   */
+  def addExpectedCounts(buckets: Seq[SentenceBucket], table: TranslationProbs,
+    nullLikelihood: Double, counts: CountTable) {
+    (table, counts) match {
+      case (counterMap: CounterMap, countMap: CounterMap) if Model1Kernel.ENABLED =>
+        buckets.foreach(Model1Kernel.addExpectedCounts(_, counterMap, nullLikelihood, countMap))
+      case (counterMap: CounterMap, countMap: CounterMap) =>
+        buckets.foreach(addExpectedCounts(_, counterMap, nullLikelihood, countMap))
+      case (_, countMap: CounterMap) =>
+        buckets.foreach(addExpectedCounts(_, table, nullLikelihood, countMap))
+      case _ =>
+        buckets.foreach(addExpectedCountsByLink(_, table, nullLikelihood, counts))
+    }
+  }
+
+  /**
+   * Runs the E step over all buckets and returns the expected counts.
+   */
+  def expectedCounts(buckets: Seq[SentenceBucket], table: TranslationProbs,
+    nullLikelihood: Double): CounterMap = {
+    val counts = new CounterMap
+    addExpectedCounts(buckets, table, nullLikelihood, counts)
+    counts
+  }
+}
+
+
+/**
+ * Compares the E-step throughput over length buckets with the throughput
+ * over the same pairs in file order, on the initial translation table.
+ *
+ * Usage: LengthBucketBenchmark <training data path> <max pairs> [iterations]
+ */
+object LengthBucketBenchmark extends Application {
+
+  override def main(args: Array[String]) {
+    val iterations = if (args.length > 2) args(2).toInt else 5
+    val sentencePairs = SentencePair.readSentencePairs(args(0), args(1).toInt)
+
+    val aligner = new AlignerSingleThread
+    aligner.init(sentencePairs)
+    val table = aligner.alignProb
+    val pairs = sentencePairs.map(SimpleSentencePair.fromSentencePair).toArray
+
+    val fileOrder = LengthBuckets.inFileOrder(pairs.iterator)
+    val bucketed = LengthBuckets.bucketize(pairs.iterator)
+    val numLinks = fileOrder.map(_.numLinks).sum
+    println(pairs.size + " pairs, " + numLinks + " links, " + bucketed.size +
+      " buckets of width " + LengthBuckets.BUCKET_WIDTH)
+
+    def time(name: String, buckets: Array[SentenceBucket]): Double = {
+      // The first run warms up the JIT.
+      LengthBuckets.expectedCounts(buckets, table, aligner.NULL_LIKELIHOOD)
+      val startTime = System.nanoTime
+      for (i <- 1 to iterations) {
+        LengthBuckets.expectedCounts(buckets, table, aligner.NULL_LIKELIHOOD)
+      }
+      val seconds = (System.nanoTime - startTime) / 1e9 / iterations
+      println("%s: %.3f s per E step, %.0f pairs/s, %.0f links/s".format(
+        name, seconds, pairs.size / seconds, numLinks / seconds))
+      seconds
+    }
+
+    val fileOrderSeconds = time("file order", fileOrder)
+    val bucketedSeconds = time("length buckets", bucketed)
+    println("Speedup: %.2fx".format(fileOrderSeconds / bucketedSeconds))
+  }
+}
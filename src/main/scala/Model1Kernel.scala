@@ -0,0 +1,236 @@
+package edu.berkeley.cs.amplab.aligner
+
+import scala.collection.JavaConversions._
+
+import edu.berkeley.nlp.mt.{Alignment, SentencePair}
+
+
+/**
+ * The Model 1 inner loops over a contiguous block of probabilities. For a
+ * sentence with L English and J French words, gather() copies t(f_j | e_i)
+ * into block(j * (L + 1) + i), with NULL at i = L; the posterior and Viterbi
+ * loops then only do arithmetic over consecutive doubles, with no lookups or
+ * branches, which the JIT compiles into unrolled (and, for the scaling
+ * loops, SIMD) code. The table lookups all happen in gather(), once per
+ * link.
+ *
+ * Set aligner.kernel.contiguous to use it in the bucketed E step and in
+ * AlignerSingleThread.alignSentencePair().
+ *
+ * @author rxin
+ */
+object Model1Kernel {
+
+  val ENABLED = AlignerConf.getBoolean("aligner.kernel.contiguous", false)
+
+  /**
+   * Fills the block of a sentence from the table rows of its English words
+   * (null for a word that has none) and of NULL.
+   */
+  def gather(rows: Array[Counter], nullRow: Counter, englishLength: Int,
+    french: Array[Int], frenchStart: Int, frenchLength: Int, block: Array[Double]) {
+    val stride = englishLength + 1
+    var j = 0
+    while (j < frenchLength) {
+      val f = french(frenchStart + j)
+      val offset = j * stride
+      var i = 0
+      while (i < englishLength) {
+        block(offset + i) = if (rows(i) == null) 0.0 else rows(i).getCount(f)
+        i += 1
+      }
+      block(offset + englishLength) = if (nullRow == null) 0.0 else nullRow.getCount(f)
+      j += 1
+    }
+  }
+
+  /**
+   * Turns a gathered block into link posteriors times weight, in place.
+   * A French word that no word can translate gets all-zero posteriors.
+   */
+  def posteriors(block: Array[Double], englishLength: Int, frenchLength: Int,
+    nullLikelihood: Double, distortion: Double, weight: Double) {
+    val stride = englishLength + 1
+    var j = 0
+    while (j < frenchLength) {
+      val offset = j * stride
+      val end = offset + englishLength
+      var k = offset
+      while (k < end) {
+        block(k) *= distortion
+        k += 1
+      }
+      block(end) *= nullLikelihood
+
+      var sum = 0.0
+      k = offset
+      while (k <= end) {
+        sum += block(k)
+        k += 1
+      }
+
+      val scale = if (sum > 0) weight / sum else 0.0
+      k = offset
+      while (k <= end) {
+        block(k) *= scale
+        k += 1
+      }
+      j += 1
+    }
+  }
+
+  /**
+   * Finds the most likely English position of every French word of a
+   * gathered block, or -1 for NULL. NULL wins ties, and among English words
+   * the first one does, as in the aligners' alignSentencePair().
+   */
+  def viterbi(block: Array[Double], englishLength: Int, frenchLength: Int,
+    nullLikelihood: Double, distortion: Double, best: Array[Int]) {
+    val stride = englishLength + 1
+    var j = 0
+    while (j < frenchLength) {
+      val offset = j * stride
+      var bestProb = block(offset + englishLength) * nullLikelihood
+      var bestI = -1
+      var i = 0
+      while (i < englishLength) {
+        val prob = block(offset + i) * distortion
+        if (prob > bestProb) {
+          bestProb = prob
+          bestI = i
+        }
+        i += 1
+      }
+      best(j) = bestI
+      j += 1
+    }
+  }
+
+  /**
+   * Adds the expected counts of the pairs of a bucket, like
+   * LengthBuckets.addExpectedCounts(), through the contiguous kernel.
+   */
+  def addExpectedCounts(bucket: SentenceBucket, table: CounterMap,
+    nullLikelihood: Double, counts: CounterMap) {
+    val nonNullLikelihood = 1 - nullLikelihood
+    val rows = new Array[Counter](bucket.maxEnglishLength)
+    val countRows = new Array[Counter](bucket.maxEnglishLength)
+    val block = new Array[Double]((bucket.maxEnglishLength + 1) * bucket.maxFrenchLength)
+    val nullRow = table.get(0).orNull
+    val nullCountRow = counts.ensureCounter(0)
+
+    var s = 0
+    while (s < bucket.size) {
+      val englishStart = bucket.englishStarts(s)
+      val englishLength = bucket.englishStarts(s + 1) - englishStart
+      val frenchStart = bucket.frenchStarts(s)
+      val frenchLength = bucket.frenchStarts(s + 1) - frenchStart
+
+      var i = 0
+      while (i < englishLength) {
+        val e = bucket.english(englishStart + i)
+        rows(i) = table.get(e).orNull
+        countRows(i) = counts.ensureCounter(e)
+        i += 1
+      }
+
+      gather(rows, nullRow, englishLength, bucket.french, frenchStart, frenchLength, block)
+      posteriors(block, englishLength, frenchLength, nullLikelihood,
+        nonNullLikelihood / (englishLength + 1), bucket.counts(s))
+
+      // Scatter the posteriors into the counts.
+      val stride = englishLength + 1
+      var j = 0
+      while (j < frenchLength) {
+        val f = bucket.french(frenchStart + j)
+        val offset = j * stride
+        if (block(offset + englishLength) > 0) {
+          nullCountRow.incrementCount(f, block(offset + englishLength))
+        }
+        i = 0
+        while (i < englishLength) {
+          if (block(offset + i) > 0) countRows(i).incrementCount(f, block(offset + i))
+          i += 1
+        }
+        j += 1
+      }
+      s += 1
+    }
+  }
+
+  /** Viterbi-aligns a sentence pair through the contiguous kernel. */
+  def align(table: CounterMap, nullLikelihood: Double, sentencePair: SentencePair): Alignment = {
+    val englishLength = sentencePair.getEnglishWords.size
+    val frenchLength = sentencePair.getFrenchWords.size
+    val rows = sentencePair.getEnglishWords.map(e => table.get(e.toInt).orNull).toArray
+    val french = sentencePair.getFrenchWords.map(_.toInt).toArray
+    val block = new Array[Double]((englishLength + 1) * frenchLength)
+    gather(rows, table.get(0).orNull, englishLength, french, 0, frenchLength, block)
+
+    val best = new Array[Int](frenchLength)
+    viterbi(block, englishLength, frenchLength, nullLikelihood,
+      (1 - nullLikelihood) / (englishLength + 1), best)
+    val alignment = new Alignment
+    for (fi <- 0 until frenchLength) {
+      if (best(fi) != -1) alignment.addAlignment(best(fi), fi, true)
+    }
+    alignment
+  }
+}
+
+
+/**
+ * Compares the contiguous kernel with the row-wise loops, for the bucketed E
+ * step on the initial table and for Viterbi alignment of the test set on the
+ * trained one.
+ *
+ * Usage: Model1KernelBenchmark <max training pairs> [data path] [iterations]
+ */
+object Model1KernelBenchmark extends Application {
+
+  override def main(args: Array[String]) {
+    val path = if (args.length > 1) args(1) else "./data/"
+    val iterations = if (args.length > 2) args(2).toInt else 5
+    val trainingPairs = SentencePair.readSentencePairs(path + "/training", args(0).toInt)
+    val testPairs = SentencePair.readSentencePairs(path + "/test_aligns_big",
+      Integer.MAX_VALUE).toList
+
+    val aligner = new AlignerSingleThread
+    aligner.init(trainingPairs)
+    val buckets = LengthBuckets.bucketize(
+      trainingPairs.iterator.map(SimpleSentencePair.fromSentencePair))
+    val numLinks = buckets.map(_.numLinks).sum
+    val table = aligner.alignProb
+    val nullLikelihood = aligner.NULL_LIKELIHOOD
+
+    def time(name: String, work: Long, run: => Unit): Double = {
+      // The first run warms up the JIT.
+      run
+      val startTime = System.nanoTime
+      for (i <- 1 to iterations) run
+      val seconds = (System.nanoTime - startTime) / 1e9 / iterations
+      println("%-22s %.4f s, %.0f links/s".format(name, seconds, work / seconds))
+      seconds
+    }
+
+    val rowSeconds = time("E step, rows", numLinks, {
+      val counts = new CounterMap
+      buckets.foreach(LengthBuckets.addExpectedCounts(_, table, nullLikelihood, counts))
+    })
+    val kernelSeconds = time("E step, contiguous", numLinks, {
+      val counts = new CounterMap
+      buckets.foreach(Model1Kernel.addExpectedCounts(_, table, nullLikelihood, counts))
+    })
+    println("E step speedup: %.2fx".format(rowSeconds / kernelSeconds))
+
+    aligner.train(trainingPairs)
+    val testLinks = testPairs.map(p => p.getEnglishWords.size.toLong * p.getFrenchWords.size).sum
+    val viterbiSeconds = time("Viterbi, rows", testLinks, {
+      testPairs.foreach(aligner.alignSentencePairByLink(_))
+    })
+    val viterbiKernelSeconds = time("Viterbi, contiguous", testLinks, {
+      testPairs.foreach(Model1Kernel.align(aligner.alignProb, nullLikelihood, _))
+    })
+    println("Viterbi speedup: %.2fx".format(viterbiSeconds / viterbiKernelSeconds))
+  }
+}
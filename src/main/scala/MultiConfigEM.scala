@@ -0,0 +1,252 @@
+package edu.berkeley.cs.amplab.aligner
+
+import scala.collection.JavaConversions._
+
+import edu.berkeley.nlp.mt.{Alignment, SentencePair}
+import spark.{RDD, SparkContext}
+
+
+/**
+ * One training configuration of a sweep:
+ *
+ *   nullLikelihood  the probability of aligning to NULL
+ *   pruneThreshold  after every M step, entries of t below this are dropped
+ *                   and their rows renormalized (0: no pruning)
+ *   reversed        train t(e | f), i.e. align French to English words
+ *
+ * @author rxin
+ */
+@serializable
+class EMConfig(
+  val nullLikelihood: Double,
+  val pruneThreshold: Double,
+  val reversed: Boolean) {
+
+  override def toString =
+    "null=" + nullLikelihood + ",prune=" + pruneThreshold + ",reverse=" + reversed
+}
+
+
+object EMConfig {
+
+  /**
+   * Parses configurations separated by semicolons, each a comma-separated
+   * list of null=..., prune=... and reverse=... settings, e.g.
+   * "null=0.2;null=0.1,prune=1e-4;reverse=true". Unset values default to
+   * those of the other trainers (aligner.nullLikelihood for null).
+   */
+  def parseAll(spec: String): Array[EMConfig] = {
+    spec.split(';').map(_.trim).filter(_.length > 0).map { configSpec =>
+      val settings = configSpec.split(',').map { setting =>
+        val keyValue = setting.split('=')
+        if (keyValue.length != 2) {
+          throw new IllegalArgumentException("Bad EM configuration setting: " + setting)
+        }
+        (keyValue(0).trim, keyValue(1).trim)
+      }.toMap
+      settings.keys.foreach { key =>
+        if (key != "null" && key != "prune" && key != "reverse") {
+          throw new IllegalArgumentException("Unknown EM configuration setting: " + key)
+        }
+      }
+      new EMConfig(settings.get("null").map(_.toDouble).getOrElse(AlignerConf.nullLikelihood),
+        settings.getOrElse("prune", "0").toDouble,
+        settings.getOrElse("reverse", "false").toBoolean)
+    }
+  }
+}
+
+
+/**
+ * Trains one IBM Model 1 table per configuration with soft EM, all in the
+ * same scans of the corpus: every task reads each sentence pair once and
+ * runs the E step of every configuration on it, and the counts of all
+ * configurations are reduced together. A sweep of K configurations thus
+ * reads and deserializes the cached corpus once per iteration instead of K
+ * times, and runs one job per iteration instead of K. The E step treats
+ * NULL as the other trainers' list E step does: as a source word appended
+ * to every sentence, which counts towards the distortion's denominator.
+ *
+ * @author rxin
+ */
+@serializable
+class MultiConfigAlignerSpark(val sc: SparkContext, val configs: Array[EMConfig]) {
+
+  val NUM_EM_ITERATIONS = 20
+
+  var tables: Array[CounterMap] = null
+
+  /**
+   * The source and target words of a pair under a configuration. NULL is
+   * not among the source words.
+   */
+  private def sides(pair: SimpleSentencePair, config: EMConfig): (Seq[Int], Seq[Int]) = {
+    // Leave out any NULLs the pair has had appended.
+    val english = pair.englishWords.filter(_ != 0)
+    if (config.reversed) (pair.frenchWords, english) else (english, pair.frenchWords)
+  }
+
+  private def mergeAll(x: Array[CounterMap], y: Array[CounterMap]): Array[CounterMap] = {
+    for (k <- 0 until x.length) x(k).mergeWith(y(k))
+    x
+  }
+
+  /**
+   * Sets the initial tables of all configurations to the normalized
+   * co-occurrence counts of their direction, including NULL.
+   */
+  def init(trainingData: RDD[SimpleSentencePair]) {
+    val directions = Array(false, true).filter(reversed => configs.exists(_.reversed == reversed))
+    val counts = trainingData.map { pair =>
+      directions.map { reversed =>
+        val counterMap = new CounterMap
+        val (source, target) = sides(pair, new EMConfig(0, 0, reversed))
+        (source :+ 0).foreach { s =>
+          target.foreach { t => counterMap.incrementCount(s, t, pair.count) }
+        }
+        counterMap
+      }
+    }.reduce(mergeAll)
+    counts.foreach(_.normalize())
+    tables = configs.map(config => counts(directions.indexOf(config.reversed)).copy)
+  }
+
+  def train(trainingData: RDD[SimpleSentencePair], numIterations: Int = NUM_EM_ITERATIONS) {
+    for (emIteration <- 1 to numIterations) {
+      println("EM iteration # " + emIteration + " / " + numIterations + " over " +
+        configs.size + " configurations")
+      val iterationStartTime = System.currentTimeMillis
+
+      val tablesBroadcast = sc.broadcast[Array[CounterMap]](tables)
+      val configsHere = configs
+
+      // E step: every configuration's expected counts, in one pass.
+      val counts = trainingData.map { pair =>
+        val pairCounts = configsHere.map(config => new CounterMap)
+        for (k <- 0 until configsHere.length) {
+          val config = configsHere(k)
+          val table = tablesBroadcast.value(k)
+          val (source, target) = sides(pair, config)
+          // As in the trainers' E step, NULL is appended to the source words
+          // and counts towards the distortion's denominator.
+          val sourceWithNull = source :+ 0
+          val distortion = (1 - config.nullLikelihood) / (sourceWithNull.size + 1)
+          val alignDist = new Array[Double](sourceWithNull.size)
+          target.foreach { t =>
+            var alignDistSum = 0.0
+            var i = 0
+            sourceWithNull.foreach { s =>
+              alignDist(i) =
+                if (s == 0) table.getCount(0, t) * config.nullLikelihood
+                else table.getCount(s, t) * distortion
+              alignDistSum += alignDist(i)
+              i += 1
+            }
+            if (alignDistSum > 0) {
+              i = 0
+              sourceWithNull.foreach { s =>
+                pairCounts(k).incrementCount(s, t, pair.count * alignDist(i) / alignDistSum)
+                i += 1
+              }
+            }
+          }
+        }
+        pairCounts
+      }.reduce(mergeAll)
+
+      // M step, per configuration.
+      for (k <- 0 until configs.length) {
+        counts(k).normalize()
+        if (configs(k).pruneThreshold > 0) prune(counts(k), configs(k).pruneThreshold)
+      }
+      tables = counts
+
+      println("EM iteration # " + emIteration + " took " +
+        (System.currentTimeMillis - iterationStartTime) + " ms")
+    }
+  }
+
+  /**
+   * Drops the entries below the threshold and renormalizes their rows. A row
+   * whose entries are all below it is kept as it is.
+   */
+  def prune(table: CounterMap, threshold: Double) {
+    table.values.foreach { counter =>
+      val kept = counter.filter(_._2 >= threshold)
+      if (!kept.isEmpty && kept.size < counter.size) {
+        counter.clear()
+        counter ++= kept
+        counter.normalize()
+      }
+    }
+  }
+
+  /**
+   * Viterbi-aligns a test pair under configuration k. A reversed table links
+   * every English word to its most likely French word instead.
+   */
+  def alignSentencePair(k: Int, sentencePair: SentencePair): Alignment = {
+    val config = configs(k)
+    val table = tables(k)
+    val english = sentencePair.getEnglishWords.map(_.toInt).toIndexedSeq
+    val french = sentencePair.getFrenchWords.map(_.toInt).toIndexedSeq
+    val (source, target) = if (config.reversed) (french, english) else (english, french)
+    val distortion = (1 - config.nullLikelihood) / (source.size + 1)
+
+    val alignment = new Alignment
+    target.zipWithIndex.foreach { case(t, ti) =>
+      var bestProb = table.getCount(0, t) * config.nullLikelihood
+      var bestSi = -1
+      source.zipWithIndex.foreach { case(s, si) =>
+        val prob = table.getCount(s, t) * distortion
+        if (prob > bestProb) {
+          bestProb = prob
+          bestSi = si
+        }
+      }
+      if (bestSi != -1) {
+        if (config.reversed) alignment.addAlignment(ti, bestSi, true)
+        else alignment.addAlignment(bestSi, ti, true)
+      }
+    }
+    alignment
+  }
+}
+
+
+/**
+ * A driver that trains every configuration of aligner.sweep (see
+ * EMConfig.parseAll) in shared scans of the corpus, and prints the AER of
+ * each on the test set.
+ *
+ * @author rxin
+ */
+object MultiConfigAligner extends Application {
+
+  override def main(args: Array[String]) {
+    // args(0) = spark master
+    // args(1) = num of training sentence pairs per node
+    // args(2) = test data path
+    // args(3) = training data path (HDFS)
+    val configs = EMConfig.parseAll(AlignerConf.get("aligner.sweep", "null=0.2"))
+    val sc = new SparkContext(args(0), "aligner")
+    val maxTrain = args(1).toInt
+    val trainingData = sc.textFile(args(3)).splitRdd.flatMap {
+      _.take(maxTrain)
+    }.map(SimpleSentencePair.lineToSimpleSentencePair(_)).cache()
+
+    val aligner = new MultiConfigAlignerSpark(sc, configs)
+    aligner.init(trainingData)
+    aligner.train(trainingData,
+      AlignerConf.getInt("aligner.sweep.iterations", aligner.NUM_EM_ITERATIONS))
+
+    val testPairs = SentencePair.readSentencePairs(args(2) + "/test_aligns_big",
+      Integer.MAX_VALUE).toList
+    val testAlignments = Alignment.readAlignments(args(2) + "/test_aligns_big/test.wa")
+    for (k <- 0 until configs.length) {
+      val aer = TablePrecisionEval.aer(testPairs, testAlignments,
+        aligner.alignSentencePair(k, _))
+      println("%-40s AER %.4f".format(configs(k), aer))
+    }
+  }
+}
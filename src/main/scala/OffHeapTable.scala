@@ -0,0 +1,303 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.io.{File, RandomAccessFile}
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+import scala.collection.JavaConversions._
+
+
+/**
+ * A table of (English word, French word) -> count held outside the Java
+ * heap, in direct ByteBuffers, so that the garbage collector neither scans
+ * nor copies it. A CounterMap of the same size is tens of millions of boxed
+ * entries that every full collection has to trace.
+ *
+ * The table is an open-addressing hash table with linear probing. Every slot
+ * is 16 bytes: the pair packed into a long (English word in the high half),
+ * plus one, with 0 marking an empty slot; then the count as a double. The
+ * slots are spread over segments of SEGMENT_SLOTS slots, since a single
+ * buffer cannot exceed 2 GB. Word IDs must not be negative.
+ *
+ * A snapshot file is a 16-byte header followed by the slots exactly as they
+ * are in memory, so writeSnapshot() hands the buffers straight to the file
+ * channel, and readSnapshot() maps the file instead of reading it: the slots
+ * are paged in on demand, and copied only if they are modified.
+ *
+ * @author rxin
+ */
+class OffHeapTable(initialCapacity: Int = 1 << 16) extends TranslationProbs with CountTable {
+
+  import OffHeapTable._
+
+  private var capacity = tableCapacity(initialCapacity)
+
+  private var segments = allocateSegments(capacity)
+
+  private var numEntries = 0
+
+  def size = numEntries
+
+  /** The off-heap memory held by the table, in bytes. */
+  def sizeInBytes: Long = capacity.toLong * SLOT_BYTES
+
+  def getCount(english: Int, french: Int): Double = {
+    val slot = findSlot(storedKey(english, french))
+    if (keyAt(slot) == EMPTY) 0.0 else valueAt(slot)
+  }
+
+  def incrementCount(english: Int, french: Int, amount: Double) {
+    val key = storedKey(english, french)
+    val slot = findSlot(key)
+    if (keyAt(slot) == EMPTY) insert(slot, key, amount)
+    else setValueAt(slot, valueAt(slot) + amount)
+  }
+
+  def setCount(english: Int, french: Int, count: Double) {
+    val key = storedKey(english, french)
+    val slot = findSlot(key)
+    if (keyAt(slot) == EMPTY) insert(slot, key, count)
+    else setValueAt(slot, count)
+  }
+
+  /**
+   * Normalizes every row (all entries of an English word) to sum to one.
+   * The row sums are the only thing kept on the heap, one per English word.
+   */
+  def normalize() {
+    val rowSums = new Counter
+    foreachSlot { slot =>
+      rowSums.incrementCount(englishOf(keyAt(slot)), valueAt(slot))
+    }
+    foreachSlot { slot =>
+      setValueAt(slot, valueAt(slot) / rowSums(englishOf(keyAt(slot))))
+    }
+  }
+
+  /** Adds the counts of a CounterMap, e.g. prior counts, into this table. */
+  def mergeWith(counterMap: CounterMap): OffHeapTable = {
+    counterMap.foreach { case(e, counter) =>
+      counter.foreach { case(f, count) => incrementCount(e, f, count) }
+    }
+    this
+  }
+
+  def foreach(f: (Int, Int, Double) => Unit) {
+    foreachSlot { slot =>
+      val key = keyAt(slot)
+      f(englishOf(key), frenchOf(key), valueAt(slot))
+    }
+  }
+
+  /** Copies the table onto the heap, e.g. for the decoders. */
+  def toCounterMap: CounterMap = {
+    val counterMap = new CounterMap
+    foreach { (e, f, count) => counterMap.setCount(e, f, count) }
+    counterMap
+  }
+
+  /**
+   * Frees the off-heap memory now rather than when the buffers are
+   * collected. The table must not be used afterwards.
+   */
+  def release() {
+    segments.foreach(freeBuffer)
+    segments = null
+  }
+
+  /**
+   * Writes the table to a snapshot file, directly from the off-heap buffers.
+   */
+  def writeSnapshot(path: String) {
+    val channel = new RandomAccessFile(path, "rw").getChannel
+    try {
+      channel.truncate(0)
+      val header = ByteBuffer.allocate(HEADER_BYTES)
+      header.putInt(SNAPSHOT_MAGIC).putInt(capacity).putInt(numEntries).putInt(0).flip()
+      writeFully(channel, header)
+      segments.foreach { segment => writeFully(channel, segment.duplicate()) }
+    } finally {
+      channel.close()
+    }
+  }
+
+  // Linear probing from the key's hash; returns the key's slot, or the empty
+  // slot where it belongs.
+  private def findSlot(key: Long): Int = {
+    val mask = capacity - 1
+    var slot = hash(key) & mask
+    while (true) {
+      val slotKey = keyAt(slot)
+      if (slotKey == key || slotKey == EMPTY) return slot
+      slot = (slot + 1) & mask
+    }
+    -1
+  }
+
+  private def insert(slot: Int, key: Long, value: Double) {
+    if (numEntries + 1 > capacity * MAX_LOAD) {
+      grow()
+      insert(findSlot(key), key, value)
+    } else {
+      setKeyAt(slot, key)
+      setValueAt(slot, value)
+      numEntries += 1
+    }
+  }
+
+  private def grow() {
+    val oldSegments = segments
+    val oldCapacity = capacity
+    capacity *= 2
+    segments = allocateSegments(capacity)
+    numEntries = 0
+    for (slot <- 0 until oldCapacity) {
+      val segment = oldSegments(slot >>> SEGMENT_BITS)
+      val offset = (slot & SEGMENT_MASK) << SLOT_SHIFT
+      val key = segment.getLong(offset)
+      if (key != EMPTY) insert(findSlot(key), key, segment.getDouble(offset + 8))
+    }
+    oldSegments.foreach(freeBuffer)
+  }
+
+  private def foreachSlot(f: Int => Unit) {
+    var slot = 0
+    while (slot < capacity) {
+      if (keyAt(slot) != EMPTY) f(slot)
+      slot += 1
+    }
+  }
+
+  private def keyAt(slot: Int) =
+    segments(slot >>> SEGMENT_BITS).getLong((slot & SEGMENT_MASK) << SLOT_SHIFT)
+
+  private def setKeyAt(slot: Int, key: Long) {
+    segments(slot >>> SEGMENT_BITS).putLong((slot & SEGMENT_MASK) << SLOT_SHIFT, key)
+  }
+
+  private def valueAt(slot: Int) =
+    segments(slot >>> SEGMENT_BITS).getDouble(((slot & SEGMENT_MASK) << SLOT_SHIFT) + 8)
+
+  private def setValueAt(slot: Int, value: Double) {
+    segments(slot >>> SEGMENT_BITS).putDouble(((slot & SEGMENT_MASK) << SLOT_SHIFT) + 8, value)
+  }
+}
+
+
+object OffHeapTable {
+
+  val SLOT_BYTES = 16
+
+  val SLOT_SHIFT = 4
+
+  /** 2^22 slots, i.e. 64 MB, per buffer. */
+  val SEGMENT_BITS = 22
+
+  val SEGMENT_SLOTS = 1 << SEGMENT_BITS
+
+  val SEGMENT_MASK = SEGMENT_SLOTS - 1
+
+  val MAX_LOAD = 0.7
+
+  val EMPTY = 0L
+
+  val SNAPSHOT_MAGIC = 0x4d314f48  // "M1OH"
+
+  val HEADER_BYTES = 16
+
+  def storedKey(english: Int, french: Int): Long =
+    ((english.toLong << 32) | (french & 0xffffffffL)) + 1
+
+  def englishOf(storedKey: Long) = ((storedKey - 1) >>> 32).toInt
+
+  def frenchOf(storedKey: Long) = (storedKey - 1).toInt
+
+  def hash(key: Long): Int = {
+    val h = key * 0x9e3779b97f4a7c15L
+    (h ^ (h >>> 29)).toInt
+  }
+
+  /** The smallest power of two that holds the given number of entries. */
+  def tableCapacity(numEntries: Int): Int = {
+    var capacity = 16
+    while (capacity * MAX_LOAD < numEntries) capacity *= 2
+    capacity
+  }
+
+  /** Copies a CounterMap off the heap. */
+  def apply(counterMap: CounterMap): OffHeapTable = {
+    val table = new OffHeapTable(counterMap.values.map(_.size).sum)
+    table.mergeWith(counterMap)
+  }
+
+  /**
+   * Maps a snapshot written by writeSnapshot(). The table is backed by the
+   * file, privately: changes to it are not written back. Throws a
+   * RuntimeException if the file is not as long as its header says.
+   */
+  def readSnapshot(path: String): OffHeapTable = {
+    val channel = new RandomAccessFile(path, "r").getChannel
+    try {
+      val header = ByteBuffer.allocate(HEADER_BYTES)
+      while (header.hasRemaining && channel.read(header) >= 0) {}
+      header.flip()
+      if (header.remaining < HEADER_BYTES || header.getInt() != SNAPSHOT_MAGIC) {
+        throw new RuntimeException("Not an off-heap table snapshot: " + path)
+      }
+      val capacity = header.getInt()
+      val numEntries = header.getInt()
+      if (capacity <= 0 || Integer.bitCount(capacity) != 1 || numEntries < 0 ||
+          numEntries > capacity ||
+          channel.size != HEADER_BYTES + capacity.toLong * SLOT_BYTES) {
+        throw new RuntimeException("Truncated or corrupt off-heap table snapshot: " + path)
+      }
+      val table = new OffHeapTable(0)
+      table.release()
+      table.capacity = capacity
+      table.numEntries = numEntries
+      table.segments = Array.tabulate(numSegments(capacity)) { i =>
+        channel.map(FileChannel.MapMode.PRIVATE,
+          HEADER_BYTES + i.toLong * SEGMENT_SLOTS * SLOT_BYTES,
+          segmentSlots(capacity, i).toLong * SLOT_BYTES).asInstanceOf[ByteBuffer]
+      }
+      table
+    } finally {
+      // The mappings stay valid after the channel is closed.
+      channel.close()
+    }
+  }
+
+  /** The total time spent in garbage collection so far, in ms. */
+  def gcMillis: Long = ManagementFactory.getGarbageCollectorMXBeans.map(_.getCollectionTime).sum
+
+  private def numSegments(capacity: Int) = (capacity + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS
+
+  private def segmentSlots(capacity: Int, segment: Int) =
+    math.min(SEGMENT_SLOTS, capacity - segment * SEGMENT_SLOTS)
+
+  // Direct buffers are zeroed, i.e. all slots start out empty.
+  private def allocateSegments(capacity: Int): Array[ByteBuffer] = {
+    Array.tabulate(numSegments(capacity)) { i =>
+      ByteBuffer.allocateDirect(segmentSlots(capacity, i) * SLOT_BYTES)
+    }
+  }
+
+  private def writeFully(channel: FileChannel, buffer: ByteBuffer) {
+    buffer.clear()
+    while (buffer.hasRemaining) channel.write(buffer)
+  }
+
+  // Runs the buffer's cleaner if the JVM has one; otherwise the memory is
+  // freed when the buffer is collected.
+  private def freeBuffer(buffer: ByteBuffer) {
+    try {
+      val cleanerMethod = buffer.getClass.getMethod("cleaner")
+      cleanerMethod.setAccessible(true)
+      val cleaner = cleanerMethod.invoke(buffer)
+      if (cleaner != null) cleaner.getClass.getMethod("clean").invoke(cleaner)
+    } catch {
+      case e: Exception =>
+    }
+  }
+}
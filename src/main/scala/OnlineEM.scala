@@ -0,0 +1,150 @@
+package edu.berkeley.cs.amplab.aligner
+
+
+/**
+ * IBM Model 1 trained with stepwise online EM (Liang & Klein, 2009).
+ *
+ * Batch EM needs a full pass over the corpus for every parameter update, so
+ * the drivers cache the whole corpus in memory. Stepwise EM instead updates
+ * the sufficient statistics after every mini-batch:
+ *
+ *   mu <- (1 - eta_k) * mu + eta_k * s(batch_k),  eta_k = (k + 2)^(-alpha)
+ *
+ * and t(f|e) is mu(e, f) normalized over f. Sentence pairs can be streamed
+ * from disk, so memory is bounded by the size of the model, not the corpus.
+ *
+ * The (1 - eta) interpolation is applied lazily: mu is stored divided by a
+ * global scale, so shrinking all statistics is a single multiplication.
+ *
+ * The step size decay alpha must be in (0.5, 1], for the step sizes to
+ * satisfy the conditions under which stepwise EM converges.
+ *
+ * unseenProb is the translation probability used for (e, f) pairs that have
+ * not been seen yet (aligner.online.unseenProb by default). A sentence whose
+ * links are all unseen then gets uniform posteriors, which is the first
+ * E-step of the batch trainers' initialization. It should be well below the
+ * probabilities of seen pairs, or unseen links take mass from seen ones.
+ *
+ * @author rxin
+ */
+@serializable
+class StepwiseModel1(
+  val nullLikelihood: Double,
+  val stepSizeDecay: Double,
+  val unseenProb: Double = StepwiseModel1.UNSEEN_PROB) {
+
+  if (!(stepSizeDecay > 0.5 && stepSizeDecay <= 1)) {
+    throw new IllegalArgumentException(
+      "The step size decay of stepwise EM must be in (0.5, 1]: " + stepSizeDecay)
+  }
+  if (!(unseenProb > 0 && unseenProb < 1)) {
+    throw new IllegalArgumentException(
+      "The probability of unseen pairs must be in (0, 1): " + unseenProb)
+  }
+
+  val nonNullLikelihood = 1 - nullLikelihood
+
+  /** Sufficient statistics mu, divided by scale. */
+  val stats = new CounterMap
+
+  /** Row sums of stats, for normalizing rows on the fly. */
+  val rowSums = new Counter
+
+  var scale = 1.0
+
+  var numUpdates = 0
+
+  def getProb(e: Int, f: Int): Double = {
+    val count = stats.getCount(e, f)
+    if (count == 0) unseenProb else count / rowSums.getCount(e)
+  }
+
+  /**
+   * Computes the expected alignment counts of a mini-batch under the current
+   * model. NULL (0) is aligned implicitly; it is not appended to the
+   * sentences. The counts of a deduplicated pair are weighted by its count.
+   */
+  def expectedCounts(batch: Iterator[SimpleSentencePair]): CounterMap = {
+    val counts = new CounterMap
+    var alignDist = new Array[Double](16)
+
+    batch.foreach { sentencePair =>
+      val englishWords = sentencePair.englishWords
+      val numEnglish = englishWords.size
+      if (alignDist.length < numEnglish) alignDist = new Array[Double](numEnglish)
+      val distortion = nonNullLikelihood / (numEnglish + 1)
+      val weight = sentencePair.count
+
+      sentencePair.frenchWords.foreach { f =>
+        val nullProb = getProb(0, f) * nullLikelihood
+        var alignDistSum = nullProb
+        var i = 0
+        while (i < numEnglish) {
+          alignDist(i) = getProb(englishWords(i), f) * distortion
+          alignDistSum += alignDist(i)
+          i += 1
+        }
+
+        counts.incrementCount(0, f, weight * nullProb / alignDistSum)
+        i = 0
+        while (i < numEnglish) {
+          counts.incrementCount(englishWords(i), f, weight * alignDist(i) / alignDistSum)
+          i += 1
+        }
+      }
+    }
+
+    counts
+  }
+
+  /**
+   * Interpolates the expected counts of one mini-batch into the sufficient
+   * statistics.
+   */
+  def update(batchCounts: CounterMap) {
+    val eta = math.pow(numUpdates + 2, -stepSizeDecay)
+    scale *= (1 - eta)
+    batchCounts.foreach { case(e, counter) =>
+      counter.foreach { case(f, count) =>
+        val amount = eta * count / scale
+        stats.incrementCount(e, f, amount)
+        rowSums.incrementCount(e, amount)
+      }
+    }
+    numUpdates += 1
+
+    // Fold the scale back into the statistics before it underflows.
+    if (scale < 1e-100) {
+      stats.foreach { case(e, counter) =>
+        counter.foreach { case(f, count) => counter.setCount(f, count * scale) }
+      }
+      rowSums.foreach { case(e, sum) => rowSums.setCount(e, sum * scale) }
+      scale = 1.0
+    }
+  }
+
+  /**
+   * Runs one stepwise EM update on a mini-batch.
+   */
+  def step(batch: Iterator[SimpleSentencePair]) {
+    update(expectedCounts(batch))
+  }
+
+  /**
+   * Returns the normalized translation table t(f|e).
+   */
+  def translationTable: CounterMap = {
+    val table = new CounterMap
+    stats.foreach { case(e, counter) =>
+      val rowSum = rowSums.getCount(e)
+      counter.foreach { case(f, count) => table.setCount(e, f, count / rowSum) }
+    }
+    table
+  }
+}
+
+
+object StepwiseModel1 {
+
+  val UNSEEN_PROB = AlignerConf.getDouble("aligner.online.unseenProb", 1e-6)
+}
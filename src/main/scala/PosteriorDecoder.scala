@@ -0,0 +1,113 @@
+package edu.berkeley.cs.amplab.aligner
+
+import edu.berkeley.nlp.mt.{Alignment, SentencePair}
+
+
+/**
+ * Posterior decoding for IBM Model 1. Instead of picking the single most
+ * likely English word for each French word (Viterbi), it computes the full
+ * link posterior p(a_j = i | e, f) and emits every link whose posterior is
+ * above the possible threshold. Links above the sure threshold are marked
+ * sure. Every link carries its posterior as its strength.
+ *
+ * Under Model 1 the posterior of a French word only depends on the
+ * translation probabilities of the words in the same sentence, so a whole
+ * batch of sentences is gathered into flat arrays and decoded in one loop.
+ *
+ * @author rxin
+ */
+class PosteriorDecoder(
+  val alignProb: CounterMap,
+  val nullLikelihood: Double,
+  val sureThreshold: Double,
+  val possibleThreshold: Double) {
+
+  val nonNullLikelihood = 1 - nullLikelihood
+
+  def this(alignProb: CounterMap, nullLikelihood: Double, threshold: Double) =
+    this(alignProb, nullLikelihood, threshold, threshold)
+
+  def alignSentencePair(sentencePair: SentencePair): Alignment = {
+    alignSentencePairs(Seq(sentencePair))(0)
+  }
+
+  def alignSentencePairs(sentencePairs: Seq[SentencePair]): Array[Alignment] = {
+    val numSentences = sentencePairs.size
+
+    // Gather the batch into flat int arrays, one offset table per side.
+    val englishOffsets = new Array[Int](numSentences + 1)
+    val frenchOffsets = new Array[Int](numSentences + 1)
+    var maxEnglishLength = 0
+    sentencePairs.zipWithIndex.foreach { case(sentencePair, s) =>
+      val englishLength = sentencePair.getEnglishWords.size
+      englishOffsets(s + 1) = englishOffsets(s) + englishLength
+      frenchOffsets(s + 1) = frenchOffsets(s) + sentencePair.getFrenchWords.size
+      if (englishLength > maxEnglishLength) maxEnglishLength = englishLength
+    }
+
+    val englishIds = new Array[Int](englishOffsets(numSentences))
+    val frenchIds = new Array[Int](frenchOffsets(numSentences))
+    sentencePairs.zipWithIndex.foreach { case(sentencePair, s) =>
+      var i = englishOffsets(s)
+      val englishIter = sentencePair.getEnglishWords.iterator
+      while (englishIter.hasNext) { englishIds(i) = englishIter.next.toInt ; i += 1 }
+      i = frenchOffsets(s)
+      val frenchIter = sentencePair.getFrenchWords.iterator
+      while (frenchIter.hasNext) { frenchIds(i) = frenchIter.next.toInt ; i += 1 }
+    }
+
+    // Scratch buffers, sized once for the longest sentence in the batch. The
+    // rows of the translation table for the English words of the current
+    // sentence are looked up once per sentence, not once per link.
+    val rows = new Array[Counter](maxEnglishLength)
+    val posteriors = new Array[Double](maxEnglishLength)
+    val nullRow = alignProb.get(0).orNull
+    val alignments = new Array[Alignment](numSentences)
+
+    var s = 0
+    while (s < numSentences) {
+      val alignment = new Alignment
+      val englishStart = englishOffsets(s)
+      val englishLength = englishOffsets(s + 1) - englishStart
+      val distortion = nonNullLikelihood / (englishLength + 1)
+
+      var i = 0
+      while (i < englishLength) {
+        rows(i) = alignProb.get(englishIds(englishStart + i)).orNull
+        i += 1
+      }
+
+      var j = frenchOffsets(s)
+      while (j < frenchOffsets(s + 1)) {
+        val f = frenchIds(j)
+
+        var sum = if (nullRow == null) 0.0 else nullRow.getCount(f) * nullLikelihood
+        i = 0
+        while (i < englishLength) {
+          val p = if (rows(i) == null) 0.0 else rows(i).getCount(f) * distortion
+          posteriors(i) = p
+          sum += p
+          i += 1
+        }
+
+        if (sum > 0) {
+          i = 0
+          while (i < englishLength) {
+            val posterior = posteriors(i) / sum
+            if (posterior >= possibleThreshold) {
+              alignment.addAlignment(i, j - frenchOffsets(s),
+                posterior >= sureThreshold, posterior)
+            }
+            i += 1
+          }
+        }
+        j += 1
+      }
+
+      alignments(s) = alignment
+      s += 1
+    }
+
+    alignments
+  }
+}
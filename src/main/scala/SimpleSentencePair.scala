@@ -1,23 +1,64 @@
 package edu.berkeley.cs.amplab.aligner
 
+import scala.collection.JavaConversions._
 import scala.collection.mutable.Buffer
 
+import spark.{PairRDDExtras, RDD}
+
 import edu.berkeley.nlp.mt.SentencePair
 
 
+/**
+ * An integerized sentence pair. count is the number of times the pair occurs
+ * in the corpus, after duplicates have been collapsed; the trainers weight
+ * its expected counts by it.
+ */
+@serializable
 class SimpleSentencePair (
   val englishWords: Buffer[Int],
-  val frenchWords: Buffer[Int]) {
+  val frenchWords: Buffer[Int],
+  val count: Int = 1) {
+
+  /** The integerized line of the pair, without its count. */
+  def key: String = englishWords.mkString(" ") + " | " + frenchWords.mkString(" ")
+
+  def toLine: String = key + " | " + count
 }
 
 
 object SimpleSentencePair {
 
+  /**
+   * Parses an integerized training line, "e1 e2 ... | f1 f2 ..." with an
+   * optional third field holding the count of a deduplicated pair.
+   */
   def lineToSimpleSentencePair(line: String): SimpleSentencePair = {
     val pair = line.trim.split('|')
     val englishWords: Array[Int] = pair(0).trim.split("\\s").map{ _.toInt }
     val frenchWords: Array[Int] = pair(1).trim.split("\\s").map{ _.toInt }
-    return new SimpleSentencePair(englishWords.toBuffer, frenchWords.toBuffer)
+    val count = if (pair.length > 2) pair(2).trim.toInt else 1
+    return new SimpleSentencePair(englishWords.toBuffer, frenchWords.toBuffer, count)
+  }
+
+  /**
+   * Collapses repeated pairs into one pair each, with the summed count.
+   * Trainers weight expected counts by the count, so training on the result
+   * gives the same model with less E-step work.
+   */
+  def deduplicate(pairs: RDD[SimpleSentencePair]): RDD[SimpleSentencePair] = {
+    new PairRDDExtras(pairs.map(p => (p.key, p))).reduceByKey { (x, y) =>
+      new SimpleSentencePair(x.englishWords, x.frenchWords, x.count + y.count)
+    }.map(_._2)
+  }
+
+  /**
+   * Converts an integerized SentencePair read from disk.
+   */
+  def fromSentencePair(sentencePair: SentencePair): SimpleSentencePair = {
+    new SimpleSentencePair(
+      sentencePair.getEnglishWords.map(_.toInt).toBuffer,
+      sentencePair.getFrenchWords.map(_.toInt).toBuffer,
+      sentencePair.getCount)
   }
 }
 
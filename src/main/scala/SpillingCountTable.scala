@@ -0,0 +1,232 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream,
+  EOFException, File, FileInputStream, FileOutputStream}
+import java.nio.ByteBuffer
+import java.util.{Arrays, Comparator, PriorityQueue}
+
+import scala.collection.mutable.ArrayBuffer
+
+
+/**
+ * A count accumulator with a heap budget. Counts are added to a CounterMap
+ * until its estimated size exceeds the budget; the CounterMap is then
+ * written to a run file on local disk, sorted by English and then French
+ * word, and cleared. foreachRow() streams a k-way merge of the runs and of
+ * the counts still in memory, one English word at a time, so that only the
+ * current row of every run is ever on the heap.
+ *
+ * A run is a sequence of rows, each an int payload length and a payload:
+ * the English word, the number of entries n, the n French words (the first,
+ * then the gaps between them) as varints, and the n counts as doubles.
+ *
+ * Set aligner.spill.budgetMB to accumulate the counts of
+ * AlignerSingleThread's init() and E step this way; runs go to
+ * aligner.spill.dir (by default java.io.tmpdir). With aligner.offHeap too,
+ * the merged table goes into an OffHeapTable, so that neither the counts nor
+ * the table need fit on the heap. The counts cannot be looked up before they
+ * are merged, so the table is a CountTable but not a TranslationProbs. It is
+ * not used when aligner.threads is more than one.
+ *
+ * @author rxin
+ */
+class SpillingCountTable(
+  val budgetBytes: Long = SpillingCountTable.BUDGET_BYTES,
+  val spillDir: File = SpillingCountTable.SPILL_DIR) extends CountTable {
+
+  import SpillingCountTable._
+
+  private var counts = new CounterMap
+
+  private var numEntries = 0L
+
+  private val runs = new ArrayBuffer[File]
+
+  def numRuns = runs.size
+
+  def incrementCount(english: Int, french: Int, amount: Double) {
+    val row = counts.ensureCounter(english)
+    row.get(french) match {
+      case Some(count) => row.put(french, count + amount)
+      case None => {
+        row.put(french, amount)
+        numEntries += 1
+        if (numEntries * ENTRY_BYTES > budgetBytes) spill()
+      }
+    }
+  }
+
+  /** Adds the counts of a CounterMap, e.g. prior counts. */
+  def mergeWith(counterMap: CounterMap): SpillingCountTable = {
+    counterMap.foreach { case(e, counter) =>
+      counter.foreach { case(f, count) => incrementCount(e, f, count) }
+    }
+    this
+  }
+
+  /** Writes the counts in memory to a new run and clears them. */
+  def spill() {
+    if (counts.isEmpty) return
+    val file = File.createTempFile("counts-", ".run", spillDir)
+    file.deleteOnExit()
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))
+    try {
+      var buffer = ByteBuffer.allocate(1 << 16)
+      sortedRows(counts).foreach { row =>
+        val maxBytes = 10 + 13 * row.frenchIds.length
+        if (buffer.capacity < maxBytes) buffer = ByteBuffer.allocate(maxBytes)
+        buffer.clear()
+        encodeRow(row, buffer)
+        out.writeInt(buffer.position)
+        out.write(buffer.array, 0, buffer.position)
+      }
+    } finally {
+      out.close()
+    }
+    runs += file
+    println("Spilled " + numEntries + " counts to " + file + " (" + file.length + " bytes)")
+    counts = new CounterMap
+    numEntries = 0
+  }
+
+  /**
+   * Merges the runs and the counts in memory, and passes every row (the
+   * counts of one English word) to f, in English word order. The table is
+   * empty afterwards, and its runs are deleted.
+   */
+  def foreachRow(f: (Int, Counter) => Unit) {
+    val readers = runs.map(new RunReader(_))
+    val sources: Seq[BufferedIterator[Row]] = readers.map(_.buffered) :+ sortedRows(counts).buffered
+    val queue = new PriorityQueue[BufferedIterator[Row]](sources.size,
+      new Comparator[BufferedIterator[Row]] {
+        def compare(x: BufferedIterator[Row], y: BufferedIterator[Row]) =
+          x.head.english compare y.head.english
+      })
+    sources.foreach { source => if (source.hasNext) queue.add(source) }
+
+    try {
+      while (!queue.isEmpty) {
+        // Every run holds at most one row of each English word.
+        val english = queue.peek.head.english
+        val merged = new Counter
+        while (!queue.isEmpty && queue.peek.head.english == english) {
+          val source = queue.poll()
+          val row = source.next()
+          for (i <- 0 until row.frenchIds.length) {
+            merged.incrementCount(row.frenchIds(i), row.counts(i))
+          }
+          if (source.hasNext) queue.add(source)
+        }
+        f(english, merged)
+      }
+    } finally {
+      readers.foreach(_.close())
+      runs.foreach(_.delete())
+      runs.clear()
+      counts = new CounterMap
+      numEntries = 0
+    }
+  }
+
+  /**
+   * Merges the counts into table, with every row normalized to sum to one,
+   * and returns the table. If unnormalized is given, the merged counts are
+   * also copied into it.
+   */
+  def normalizeInto[T <: CountTable](table: T, unnormalized: CounterMap = null): T = {
+    foreachRow { (english, row) =>
+      if (unnormalized != null) unnormalized.put(english, row.copy)
+      row.normalize()
+      table match {
+        case counterMap: CounterMap => counterMap.put(english, row)
+        case _ => row.foreach { case(f, p) => table.incrementCount(english, f, p) }
+      }
+    }
+    table
+  }
+}
+
+
+object SpillingCountTable {
+
+  /** The estimated heap size of one entry of a CounterMap, in bytes. */
+  val ENTRY_BYTES = 64
+
+  val BUDGET_BYTES = AlignerConf.getInt("aligner.spill.budgetMB", 0) * (1L << 20)
+
+  val SPILL_DIR = new File(AlignerConf.get("aligner.spill.dir", System.getProperty("java.io.tmpdir")))
+
+  val ENABLED = BUDGET_BYTES > 0
+
+  /** A row of counts, with the French words in ascending order. */
+  class Row(val english: Int, val frenchIds: Array[Int], val counts: Array[Double])
+
+  def sortedRows(counts: CounterMap): Iterator[Row] = {
+    val englishIds = counts.keys.toArray
+    Arrays.sort(englishIds)
+    englishIds.iterator.map { e =>
+      val counter = counts(e)
+      val frenchIds = counter.keys.toArray
+      Arrays.sort(frenchIds)
+      new Row(e, frenchIds, frenchIds.map(counter))
+    }
+  }
+
+  def encodeRow(row: Row, buffer: ByteBuffer) {
+    VarInt.put(buffer, row.english)
+    VarInt.put(buffer, row.frenchIds.length)
+    var previous = 0
+    row.frenchIds.foreach { f =>
+      VarInt.put(buffer, f - previous)
+      previous = f
+    }
+    row.counts.foreach(buffer.putDouble)
+  }
+
+  def decodeRow(buffer: ByteBuffer): Row = {
+    val english = VarInt.get(buffer)
+    val frenchIds = new Array[Int](VarInt.get(buffer))
+    var previous = 0
+    for (i <- 0 until frenchIds.length) {
+      previous += VarInt.get(buffer)
+      frenchIds(i) = previous
+    }
+    val counts = new Array[Double](frenchIds.length)
+    for (i <- 0 until counts.length) counts(i) = buffer.getDouble()
+    new Row(english, frenchIds, counts)
+  }
+
+  /** Reads the rows of a run, in order. */
+  class RunReader(file: File) extends Iterator[Row] {
+
+    private val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))
+
+    private var payload = new Array[Byte](1 << 16)
+
+    private var nextRow = readRow()
+
+    private def readRow(): Row = {
+      val length =
+        try {
+          in.readInt()
+        } catch {
+          case e: EOFException => return null
+        }
+      if (payload.length < length) payload = new Array[Byte](length)
+      in.readFully(payload, 0, length)
+      decodeRow(ByteBuffer.wrap(payload, 0, length))
+    }
+
+    def hasNext = nextRow != null
+
+    def next(): Row = {
+      val row = nextRow
+      nextRow = readRow()
+      row
+    }
+
+    def close() {
+      in.close()
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.util.Arrays
+
+import scala.collection.JavaConversions._
+
+import edu.berkeley.nlp.mt.{Alignment, SentencePair}
+
+
+/**
+ * A read-only translation table t(f | e), as the E step and the decoders
+ * look it up. CounterMap is one, at full precision; CompactTranslationTable
+ * stores it at a reduced precision.
+ *
+ * @author rxin
+ */
+trait TranslationProbs {
+
+  /** Returns t(french | english), or zero if the pair is not in the table. */
+  def getCount(english: Int, french: Int): Double
+}
+
+
+/**
+ * A table that expected counts are added to, such as a CounterMap or an
+ * OffHeapTable. Tables whose counts can be looked up as they are added,
+ * as those two can, are TranslationProbs as well; a SpillingCountTable is
+ * not.
+ */
+trait CountTable {
+
+  def incrementCount(english: Int, french: Int, amount: Double)
+}
+
+
+/**
+ * The storage precisions of a CompactTranslationTable, set through
+ * aligner.table.precision (double, float, log16 or log8):
+ *
+ *   DOUBLE  64-bit probabilities, as trained
+ *   FLOAT   32-bit probabilities
+ *   LOG16   -log t(f | e) quantized to 16 bits, with one scale per row
+ *   LOG8    -log t(f | e) quantized to 8 bits, with one scale per row
+ *
+ * With Kryo (see AlignerKryoRegistrator), the Counters and CounterMaps the
+ * trainers send, such as the rows AlignerX shuffles, are written with
+ * doubles at DOUBLE and with floats at any lower precision.
+ */
+object TablePrecision extends Enumeration {
+
+  val DOUBLE, FLOAT, LOG16, LOG8 = Value
+
+  def fromConf(): Value = withName(AlignerConf.get("aligner.table.precision", "double").toUpperCase)
+
+  /**
+   * Returns the table to ship or serve at the given precision: the table
+   * itself at DOUBLE, and a CompactTranslationTable otherwise.
+   */
+  def store(table: CounterMap, precision: Value): TranslationProbs = {
+    if (precision == DOUBLE) table else CompactTranslationTable(table, precision)
+  }
+}
+
+
+/**
+ * A translation table in sorted flat arrays. The rows are sorted by English
+ * word; row r holds the French words frenchIds(rowStarts(r) until
+ * rowStarts(r + 1)), in ascending order, and their probabilities at the
+ * table's precision. Lookups are two binary searches.
+ *
+ * Log-quantized rows store q = round(-log(p) / scale), where the scale of a
+ * row maps its smallest probability to the largest code, so the relative
+ * error of every probability in the row is at most about scale / 2.
+ *
+ * The table only stores probabilities: expected counts are still
+ * accumulated in doubles.
+ *
+ * @author rxin
+ */
+@serializable
+class CompactTranslationTable(
+  val precision: TablePrecision.Value,
+  val englishIds: Array[Int],
+  val rowStarts: Array[Int],
+  val frenchIds: Array[Int],
+  val doubles: Array[Double],
+  val floats: Array[Float],
+  val shorts: Array[Short],
+  val bytes: Array[Byte],
+  val scales: Array[Float]) extends TranslationProbs {
+
+  def numRows = englishIds.length
+
+  def numEntries = frenchIds.length
+
+  def getCount(english: Int, french: Int): Double = {
+    val row = Arrays.binarySearch(englishIds, english)
+    if (row < 0) return 0.0
+    val i = Arrays.binarySearch(frenchIds, rowStarts(row), rowStarts(row + 1), french)
+    if (i < 0) 0.0 else value(row, i)
+  }
+
+  /** The probability of entry i, which is in the given row. */
+  def value(row: Int, i: Int): Double = {
+    if (doubles != null) doubles(i)
+    else if (floats != null) floats(i)
+    else if (shorts != null) math.exp(-(shorts(i) & 0xffff) * scales(row))
+    else math.exp(-(bytes(i) & 0xff) * scales(row))
+  }
+
+  /** The size of the arrays, in bytes. */
+  def sizeInBytes: Long = {
+    var size = 4L * (englishIds.length + rowStarts.length + frenchIds.length)
+    if (doubles != null) size += 8L * doubles.length
+    if (floats != null) size += 4L * floats.length
+    if (shorts != null) size += 2L * shorts.length
+    if (bytes != null) size += bytes.length
+    if (scales != null) size += 4L * scales.length
+    size
+  }
+
+  /** Decodes the table into a CounterMap. */
+  def toCounterMap: CounterMap = {
+    val table = new CounterMap
+    for (row <- 0 until numRows) {
+      val counter = table.ensureCounter(englishIds(row))
+      for (i <- rowStarts(row) until rowStarts(row + 1)) {
+        counter.setCount(frenchIds(i), value(row, i))
+      }
+    }
+    table
+  }
+}
+
+
+object CompactTranslationTable {
+
+  /**
+   * The size a table would take at the given precision, without storing it:
+   * the English words, row starts and French words as ints, the
+   * probabilities, and the scales of log-quantized rows.
+   */
+  def sizeInBytes(table: CounterMap, precision: TablePrecision.Value): Long = {
+    val numRows = table.size.toLong
+    val numEntries = table.values.map(_.size.toLong).sum
+    import TablePrecision._
+    val probBytes = precision match {
+      case DOUBLE => 8L * numEntries
+      case FLOAT => 4L * numEntries
+      case LOG16 => 2L * numEntries + 4L * numRows
+      case LOG8 => numEntries + 4L * numRows
+    }
+    4L * (numRows + numRows + 1 + numEntries) + probBytes
+  }
+
+  /** Stores a table at the given precision. */
+  def apply(table: CounterMap, precision: TablePrecision.Value): CompactTranslationTable = {
+    val englishIds = table.keys.toArray
+    Arrays.sort(englishIds)
+    val rowStarts = new Array[Int](englishIds.length + 1)
+    for (row <- 0 until englishIds.length) {
+      rowStarts(row + 1) = rowStarts(row) + table(englishIds(row)).size
+    }
+
+    val numEntries = rowStarts(englishIds.length)
+    val frenchIds = new Array[Int](numEntries)
+    val probs = new Array[Double](numEntries)
+    for (row <- 0 until englishIds.length) {
+      val counter = table(englishIds(row))
+      val start = rowStarts(row)
+      val rowFrenchIds = counter.keys.toArray
+      Arrays.sort(rowFrenchIds)
+      for (i <- 0 until rowFrenchIds.length) {
+        frenchIds(start + i) = rowFrenchIds(i)
+        probs(start + i) = counter(rowFrenchIds(i))
+      }
+    }
+
+    import TablePrecision._
+    precision match {
+      case DOUBLE => new CompactTranslationTable(precision, englishIds, rowStarts, frenchIds,
+        probs, null, null, null, null)
+      case FLOAT => new CompactTranslationTable(precision, englishIds, rowStarts, frenchIds,
+        null, probs.map(_.toFloat), null, null, null)
+      case LOG16 => {
+        val scales = logScales(probs, rowStarts, 0xffff)
+        val codes = logCodes(probs, rowStarts, scales, 0xffff)
+        new CompactTranslationTable(precision, englishIds, rowStarts, frenchIds,
+          null, null, codes.map(_.toShort), null, scales)
+      }
+      case LOG8 => {
+        val scales = logScales(probs, rowStarts, 0xff)
+        val codes = logCodes(probs, rowStarts, scales, 0xff)
+        new CompactTranslationTable(precision, englishIds, rowStarts, frenchIds,
+          null, null, null, codes.map(_.toByte), scales)
+      }
+    }
+  }
+
+  /**
+   * The scale of each row, such that -log of its smallest non-zero
+   * probability is maxCode * scale.
+   */
+  private def logScales(probs: Array[Double], rowStarts: Array[Int], maxCode: Int): Array[Float] = {
+    val scales = new Array[Float](rowStarts.length - 1)
+    for (row <- 0 until scales.length) {
+      var maxNegLog = 0.0
+      for (i <- rowStarts(row) until rowStarts(row + 1)) {
+        if (probs(i) > 0 && -math.log(probs(i)) > maxNegLog) maxNegLog = -math.log(probs(i))
+      }
+      scales(row) = (maxNegLog / maxCode).toFloat
+    }
+    scales
+  }
+
+  /** Zero probabilities get the largest code, i.e. the row's smallest probability. */
+  private def logCodes(probs: Array[Double], rowStarts: Array[Int], scales: Array[Float],
+    maxCode: Int): Array[Int] = {
+    val codes = new Array[Int](probs.length)
+    for (row <- 0 until scales.length; i <- rowStarts(row) until rowStarts(row + 1)) {
+      codes(i) =
+        if (scales(row) == 0) 0
+        else if (probs(i) <= 0) maxCode
+        else math.min(maxCode, math.round(-math.log(probs(i)) / scales(row)).toInt)
+    }
+    codes
+  }
+}
+
+
+/**
+ * Trains a table with AlignerSingleThread, stores it at every precision, and
+ * reports the size of each and the AER of Viterbi alignments under it,
+ * relative to the full-precision table.
+ *
+ * Usage: TablePrecisionEval <max training pairs> [data path]
+ */
+object TablePrecisionEval extends Application {
+
+  override def main(args: Array[String]) {
+    val path = if (args.length > 1) args(1) else "./data/"
+    val aligner = new AlignerSingleThread
+    val trainingPairs = SentencePair.readSentencePairs(path + "/training", args(0).toInt)
+    aligner.init(trainingPairs)
+    aligner.train(trainingPairs)
+
+    val testPairs = SentencePair.readSentencePairs(path + "/test_aligns_big",
+      Integer.MAX_VALUE).toList
+    val testAlignments = Alignment.readAlignments(path + "/test_aligns_big/test.wa")
+
+    val nullLikelihood = aligner.NULL_LIKELIHOOD
+    val baseline = CompactTranslationTable(aligner.alignProb, TablePrecision.DOUBLE)
+    val baselineAer = aer(baseline, nullLikelihood, testPairs, testAlignments)
+    println(baseline.numEntries + " entries in " + baseline.numRows + " rows")
+    TablePrecision.values.foreach { precision =>
+      val table = CompactTranslationTable(aligner.alignProb, precision)
+      val tableAer = aer(table, nullLikelihood, testPairs, testAlignments)
+      println("%-6s %12d bytes (%5.1f%%)  AER %.4f (%+.4f)".format(precision,
+        table.sizeInBytes, 100.0 * table.sizeInBytes / baseline.sizeInBytes,
+        tableAer, tableAer - baselineAer))
+    }
+  }
+
+  /** Viterbi-aligns a sentence pair under Model 1, as the aligners do. */
+  def align(table: TranslationProbs, nullLikelihood: Double,
+    sentencePair: SentencePair): Alignment = {
+    val alignment = new Alignment
+    val englishWords = sentencePair.getEnglishWords.map(_.toInt)
+    val distortion = (1 - nullLikelihood) / (englishWords.size + 1)
+    sentencePair.getFrenchWords.zipWithIndex.foreach { case(fw, fi) =>
+      val f = fw.toInt
+      var bestProb = table.getCount(0, f) * nullLikelihood
+      var alignToEi = -1
+      englishWords.zipWithIndex.foreach { case(e, ei) =>
+        val prob = table.getCount(e, f) * distortion
+        if (prob > bestProb) {
+          bestProb = prob
+          alignToEi = ei
+        }
+      }
+      if (alignToEi != -1) alignment.addAlignment(alignToEi, fi, true)
+    }
+    alignment
+  }
+
+  def aer(table: TranslationProbs, nullLikelihood: Double, testPairs: Seq[SentencePair],
+    testAlignments: java.util.Map[Integer, Alignment]): Double = {
+    aer(testPairs, testAlignments, align(table, nullLikelihood, _))
+  }
+
+  /** The AER of the alignments of the test pairs by the given aligner. */
+  def aer(testPairs: Seq[SentencePair], testAlignments: java.util.Map[Integer, Alignment],
+    aligner: SentencePair => Alignment): Double = {
+    var proposedSureCount = 0
+    var proposedPossibleCount = 0
+    var sureCount = 0
+    var proposedCount = 0
+    testPairs.foreach { sentencePair =>
+      val proposedAlignment = aligner(sentencePair)
+      val referenceAlignment = testAlignments.get(sentencePair.getSentenceID())
+      for (fi <- 0 until sentencePair.getFrenchWords.size;
+           ei <- 0 until sentencePair.getEnglishWords.size) {
+        // Sure and possible proposed links alike.
+        val proposed = proposedAlignment.containsPossibleAlignment(ei, fi)
+        if (proposed && referenceAlignment.containsSureAlignment(ei, fi)) proposedSureCount += 1
+        if (proposed && referenceAlignment.containsPossibleAlignment(ei, fi)) proposedPossibleCount += 1
+        if (proposed) proposedCount += 1
+        if (referenceAlignment.containsSureAlignment(ei, fi)) sureCount += 1
+      }
+    }
+    1.0 - (proposedSureCount + proposedPossibleCount) / (sureCount + proposedCount).toDouble
+  }
+}
@@ -0,0 +1,78 @@
+package edu.berkeley.cs.amplab.aligner
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream,
+  DataOutputStream, File, FileInputStream, FileOutputStream}
+
+
+/**
+ * Reads and writes translation tables (or any CounterMap, such as expected
+ * count snapshots) in a compact binary format:
+ *
+ *   magic, number of rows,
+ *   then for each row: key, number of entries, (value, count) * entries
+ *
+ * with ints and doubles in big-endian order.
+ *
+ * @author rxin
+ */
+object TranslationTableIO {
+
+  val MAGIC = 0x4d315454  // "M1TT"
+
+  def write(counterMap: CounterMap, path: String) {
+    val out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(path), 1 << 16))
+    try {
+      write(counterMap, out)
+    } finally {
+      out.close()
+    }
+  }
+
+  def write(counterMap: CounterMap, out: DataOutputStream) {
+    out.writeInt(MAGIC)
+    out.writeInt(counterMap.size)
+    counterMap.foreach { case(e, counter) =>
+      out.writeInt(e)
+      out.writeInt(counter.size)
+      counter.foreach { case(f, count) =>
+        out.writeInt(f)
+        out.writeDouble(count)
+      }
+    }
+  }
+
+  def read(path: String): CounterMap = {
+    val in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(path), 1 << 16))
+    try {
+      read(in)
+    } finally {
+      in.close()
+    }
+  }
+
+  def read(in: DataInputStream): CounterMap = {
+    if (in.readInt() != MAGIC) {
+      throw new RuntimeException("Not a translation table file")
+    }
+    val counterMap = new CounterMap
+    val numRows = in.readInt()
+    for (row <- 0 until numRows) {
+      val counter = counterMap.ensureCounter(in.readInt())
+      val numEntries = in.readInt()
+      for (entry <- 0 until numEntries) {
+        val f = in.readInt()
+        counter.setCount(f, in.readDouble())
+      }
+    }
+    counterMap
+  }
+
+  /**
+   * Reads the table at the given path, or returns null if the path is null.
+   */
+  def readOrNull(path: String): CounterMap = {
+    if (path == null) null else read(path)
+  }
+}
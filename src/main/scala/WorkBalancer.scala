@@ -0,0 +1,89 @@
+package edu.berkeley.cs.amplab.aligner
+
+import scala.collection.mutable.ArrayBuffer
+
+import spark.{PairRDDExtras, RDD, SparkContext}
+
+
+/**
+ * Repartitions a corpus into partitions of about equal E-step work.
+ *
+ * The E step of a pair costs (|E| + 1) * |F| (NULL included), so splits of
+ * equal line counts can differ several times over in work, and an iteration
+ * takes as long as its heaviest split. balance() numbers the pairs in corpus
+ * order, sums their work, and cuts the sequence into ranges of equal work,
+ * one per partition; pairs are then shuffled to their partition's split.
+ *
+ * The number of partitions is aligner.balance.partitions if set. Otherwise it
+ * is aligner.balance.perCore partitions per core (spark.default.parallelism,
+ * or the cores of this machine), raised if needed so that no partition is
+ * estimated to need more than aligner.balance.partitionMB of memory.
+ *
+ * The input is cached, since it is read once for the statistics and once for
+ * the shuffle, and so is the balanced corpus, which is computed once to log
+ * the work of every partition. Callers need not cache it again.
+ *
+ * @author rxin
+ */
+object WorkBalancer {
+
+  /** The E-step work of a pair. */
+  def work(pair: SimpleSentencePair): Long =
+    (pair.englishWords.size + 1).toLong * pair.frenchWords.size
+
+  /** A rough estimate of the memory a cached pair takes, in bytes. */
+  def memory(pair: SimpleSentencePair): Long =
+    64L + 20L * (pair.englishWords.size + pair.frenchWords.size)
+
+  def numPartitions(totalMemory: Long): Int = {
+    val configured = AlignerConf.getInt("aligner.balance.partitions", 0)
+    if (configured > 0) return configured
+    val cores = AlignerConf.getInt("spark.default.parallelism",
+      Runtime.getRuntime.availableProcessors)
+    val perCore = AlignerConf.getInt("aligner.balance.perCore", 2)
+    val partitionBytes = AlignerConf.getInt("aligner.balance.partitionMB", 256) * (1L << 20)
+    math.max(cores * perCore, ((totalMemory + partitionBytes - 1) / partitionBytes).toInt)
+  }
+
+  def balance(sc: SparkContext, input: RDD[SimpleSentencePair]): RDD[SimpleSentencePair] = {
+    val pairs = input.cache()
+    // The work and memory of every split, in split order.
+    val splitStats = pairs.splitRdd.map { split =>
+      (split.map(work).sum, split.map(memory).sum)
+    }.collect()
+    val splitWork = splitStats.map(_._1)
+    val totalWork = splitWork.sum
+    // An empty corpus has nothing to balance.
+    if (totalWork == 0) {
+      println("Not balancing an empty corpus of " + splitWork.size + " splits")
+      return pairs
+    }
+    val partitions = numPartitions(splitStats.map(_._2).sum)
+    val workPerPartition = math.max(1.0, totalWork.toDouble / partitions)
+    println("Balancing " + splitWork.size + " splits (work: max " + splitWork.max +
+      ", mean " + totalWork / splitWork.size + ") into " + partitions +
+      " partitions of work " + workPerPartition.toLong)
+
+    // The work of all the splits before each one.
+    val splitOffsets = splitWork.scanLeft(0L)(_ + _)
+    val keyedPairs = new IndexedRDD(pairs.splitRdd).flatMap { case(seed, split) =>
+      // IndexedRDD numbers the splits from 1.
+      var offset = splitOffsets(seed - 1)
+      split.map { pair =>
+        val partition = math.min(partitions - 1, (offset / workPerPartition).toInt)
+        offset += work(pair)
+        (partition, ArrayBuffer(pair))
+      }
+    }
+    // Partition p is shuffled into split p.
+    val balanced = new PairRDDExtras(keyedPairs).reduceByKey(
+      (x, y) => { x ++= y ; x }, partitions).flatMap(_._2).cache()
+
+    val partitionWork = balanced.splitRdd.map(_.map(work).sum).collect()
+    if (partitionWork.isEmpty) return balanced
+    println("Balanced into " + partitionWork.size + " partitions (work: max " +
+      partitionWork.max + ", min " + partitionWork.min + ", mean " +
+      partitionWork.sum / partitionWork.size + ")")
+    balanced
+  }
+}